@@ -0,0 +1,861 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.*;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.ReduceContextImpl;
+import org.apache.hadoop.util.Progress;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Micro-benchmarks for the per-record hot paths of EnedisBySector and EnedisByConsumption.
+ *
+ * Every benchmark runs a body once per synthetic record, with warmup iterations first, and
+ * reports the throughput in records/s and the bytes allocated per record by the running thread.
+ * The mappers and reducers are called directly with fake contexts, whose output is either discarded
+ * or collected to build the input of the next stage. For reducers, a record is one key with its values.
+ *
+ * Usage : hadoop jar EnedisBenchmark.jar EnedisBenchmark [--input path] [suite ...]
+ *         (without suite, every suite but scaling is run; --input feeds the codecs, ingest and scaling suites with
+ *         the dataset instead of generated lines)
+ */
+public class EnedisBenchmark {
+
+    public static final int RECORDS = 20000;
+    public static final int WARMUP_ITERATIONS = 5;
+    public static final int MEASURE_ITERATIONS = 10;
+
+    /** Written by the benchmark bodies so that the JIT cannot drop their work. */
+    public static volatile double blackhole;
+
+    public interface Body {
+        void run(int record) throws Exception;
+    }
+
+    /**
+     * Generate lines with the column layout of the Enedis dataset: year, commune, EPCI,
+     * department and region codes, then the number of sites, total and average consumption
+     * of each sector, population and the housing percentages used by the analyses.
+     */
+    public static Text[] generateLines(int count, long seed) {
+        Random random = new Random(seed);
+        String[] departments = {"01", "13", "2A", "59", "67", "68", "75", "93", "971"};
+        Text[] lines = new Text[count];
+        String[] cols = new String[45];
+        for (int l = 0; l < count; l++) {
+            String department = departments[random.nextInt(departments.length)];
+            String commune = department + String.format("%03d", random.nextInt(600));
+            cols[0] = Integer.toString(2011 + random.nextInt(8));
+            cols[1] = "Commune " + commune;
+            cols[2] = commune;
+            cols[3] = "EPCI " + department;
+            cols[4] = "2" + department + "00001";
+            cols[5] = "CC";
+            cols[6] = "Département " + department;
+            cols[7] = department;
+            cols[8] = "Région";
+            cols[9] = Integer.toString(11 + random.nextInt(83));
+            for (int sector = 0; sector < 5; sector++) {
+                int sites = random.nextInt(10) == 0 ? 0 : 1 + random.nextInt(500);
+                float total = sites * random.nextFloat() * 20;
+                cols[10 + sector * 3] = Integer.toString(sites);
+                cols[11 + sector * 3] = format(total, 3);
+                cols[12 + sector * 3] = format(sites == 0 ? 0 : total / sites, 3);
+            }
+            // agriculture, industry, tertiary, other are read as (sites, total) from column 16
+            for (int c = 16; c < 24; c += 2) {
+                cols[c] = Integer.toString(1 + random.nextInt(50));
+                cols[c + 1] = format(random.nextFloat() * 300, 3);
+            }
+            cols[24] = Integer.toString(50 + random.nextInt(100000));
+            cols[25] = format(random.nextFloat() * 100, 2);
+            cols[26] = format(random.nextFloat() * 100, 2);
+            fillPercentages(random, cols, 27, 6);
+            fillPercentages(random, cols, 33, 7);
+            cols[40] = format(random.nextFloat() * 100, 2);
+            for (int c = 41; c < cols.length; c++)
+                cols[c] = format(random.nextFloat() * 10, 2);
+            lines[l] = new Text(String.join(";", cols));
+        }
+        return lines;
+    }
+
+    /**
+     * Read the lines of an extract of the dataset from a local file, or from the files of a local directory.
+     */
+    public static Text[] readLines(String input) throws IOException {
+        List<java.nio.file.Path> files = new ArrayList<java.nio.file.Path>();
+        java.nio.file.Path path = java.nio.file.Paths.get(input);
+        if (java.nio.file.Files.isDirectory(path)) {
+            try (java.util.stream.Stream<java.nio.file.Path> children = java.nio.file.Files.list(path)) {
+                children.filter(java.nio.file.Files::isRegularFile).sorted().forEach(files::add);
+            }
+        } else {
+            files.add(path);
+        }
+        List<Text> lines = new ArrayList<Text>();
+        for (java.nio.file.Path file : files) {
+            for (String line : java.nio.file.Files.readAllLines(file, StandardCharsets.UTF_8))
+                lines.add(new Text(line));
+        }
+        return lines.toArray(new Text[lines.size()]);
+    }
+
+    private static void fillPercentages(Random random, String[] cols, int first, int count) {
+        float[] parts = new float[count];
+        float sum = 0;
+        for (int i = 0; i < count; i++) {
+            parts[i] = random.nextFloat();
+            sum += parts[i];
+        }
+        for (int i = 0; i < count; i++)
+            cols[first + i] = format(parts[i] / sum * 100, 2);
+    }
+
+    private static String format(float value, int decimals) {
+        return String.format(Locale.ROOT, "%." + decimals + "f", value);
+    }
+
+    /**
+     * Run *body* for every record and print the throughput and allocation rate.
+     */
+    public static void measure(String name, int records, Body body) throws Exception {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        for (int it = 0; it < WARMUP_ITERATIONS; it++)
+            for (int r = 0; r < records; r++)
+                body.run(r);
+
+        double[] throughputs = new double[MEASURE_ITERATIONS];
+        long allocated = 0;
+        for (int it = 0; it < MEASURE_ITERATIONS; it++) {
+            long bytes_before = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (int r = 0; r < records; r++)
+                body.run(r);
+            long elapsed = System.nanoTime() - start;
+            allocated += threads.getThreadAllocatedBytes(thread) - bytes_before;
+            throughputs[it] = records * 1e9 / elapsed;
+        }
+        Arrays.sort(throughputs);
+        double median = throughputs[MEASURE_ITERATIONS / 2];
+        double bytes_per_record = (double) allocated / ((long) records * MEASURE_ITERATIONS);
+
+        System.out.println(String.format(Locale.ROOT, "%-55s %14.0f records/s %10.1f B/record",
+                name, median, bytes_per_record));
+    }
+
+    /**
+     * Field access of the raw mappers: String.split + Float.parseFloat against FieldTokenizer.
+     */
+    public static void parseSuite() throws Exception {
+        final Text[] lines = generateLines(RECORDS, 1);
+        final FieldTokenizer cols = new FieldTokenizer(';');
+        final float[] avgs = new float[EnedisBySector.SECTORLABELS.length];
+
+        measure("parse.sector.split", RECORDS, new Body() {
+            public void run(int r) {
+                String[] split = lines[r].toString().split(";");
+                Float[] boxed = new Float[6];
+                boxed[0] = Float.parseFloat(split[12]);
+                boxed[1] = Float.parseFloat(split[15]);
+                for (int s = 0; s < 4; s++)
+                    boxed[2 + s] = Float.parseFloat(split[17 + 2 * s]) / Float.parseFloat(split[16 + 2 * s]);
+                blackhole = boxed[0] + boxed[5] + split[7].length();
+            }
+        });
+        measure("parse.sector.tokenizer", RECORDS, new Body() {
+            public void run(int r) {
+                cols.reset(lines[r]);
+                EnedisBySector.extractSectorAvgs(cols, avgs);
+                blackhole = avgs[0] + avgs[5] + cols.getLength(7);
+            }
+        });
+
+        final int[] consumption_columns = {10, 12, 24, 25, 27, 28, 29, 30, 31, 32,
+                33, 34, 35, 36, 37, 38, 39, 40};
+        measure("parse.consumption.split", RECORDS, new Body() {
+            public void run(int r) {
+                String[] split = lines[r].toString().split(";");
+                Float sum = 0f;
+                for (int c : consumption_columns)
+                    sum += Float.parseFloat(split[c]);
+                blackhole = sum + split[2].length();
+            }
+        });
+        measure("parse.consumption.tokenizer", RECORDS, new Body() {
+            public void run(int r) {
+                cols.reset(lines[r]);
+                float sum = 0f;
+                for (int c : consumption_columns)
+                    sum += cols.getFloat(c);
+                blackhole = sum + cols.getLength(2);
+            }
+        });
+    }
+
+    /**
+     * Sort comparisons of the shuffle keys on their serialized form: department and commune codes as Text,
+     * against the same codes as GroupKey with its registered raw comparator.
+     */
+    public static void keysSuite() throws Exception {
+        final Text[] lines = generateLines(RECORDS, 4);
+        final FieldTokenizer cols = new FieldTokenizer(';');
+        final int[] groupings = {
+                GroupKey.Dimension.DEPARTMENT.bit(),
+                GroupKey.Dimension.COMMUNE.bit(),
+                GroupKey.Dimension.YEAR.bit() | GroupKey.Dimension.DEPARTMENT.bit()};
+        final int[] columns = {7, 2, 7};
+        final String[] names = {"department", "commune", "yearDepartment"};
+
+        for (int g = 0; g < groupings.length; g++) {
+            final DataOutputBuffer text_keys = new DataOutputBuffer();
+            final DataOutputBuffer group_keys = new DataOutputBuffer();
+            final int[] text_offsets = new int[RECORDS + 1];
+            final int[] group_offsets = new int[RECORDS + 1];
+            Text code = new Text();
+            GroupKey key = new GroupKey();
+            for (int r = 0; r < RECORDS; r++) {
+                cols.reset(lines[r]);
+                code.set(cols.getBytes(), cols.getStart(columns[g]), cols.getLength(columns[g]));
+                code.write(text_keys);
+                text_offsets[r + 1] = text_keys.getLength();
+                key.set(groupings[g], cols);
+                key.write(group_keys);
+                group_offsets[r + 1] = group_keys.getLength();
+            }
+
+            final WritableComparator text_comparator = WritableComparator.get(Text.class);
+            final WritableComparator group_comparator = WritableComparator.get(GroupKey.class);
+            if (g < 2) {
+                measure("keys.Text.compare." + names[g], RECORDS - 1, r -> {
+                    blackhole = text_comparator.compare(
+                            text_keys.getData(), text_offsets[r], text_offsets[r + 1] - text_offsets[r],
+                            text_keys.getData(), text_offsets[r + 1], text_offsets[r + 2] - text_offsets[r + 1]);
+                });
+            }
+            measure("keys.GroupKey.compare." + names[g], RECORDS - 1, r -> {
+                blackhole = group_comparator.compare(
+                        group_keys.getData(), group_offsets[r], group_offsets[r + 1] - group_offsets[r],
+                        group_keys.getData(), group_offsets[r + 1], group_offsets[r + 2] - group_offsets[r + 1]);
+            });
+        }
+    }
+
+    /**
+     * Counters of the fake contexts.
+     */
+    public static class BenchmarkReporter extends StatusReporter {
+
+        private final Counters counters = new Counters();
+
+        public Counter getCounter(Enum<?> name) {
+            return counters.findCounter(name);
+        }
+
+        public Counter getCounter(String group, String name) {
+            return counters.findCounter(group, name);
+        }
+
+        public void progress() {
+        }
+
+        public float getProgress() {
+            return 0;
+        }
+
+        public void setStatus(String status) {
+        }
+    }
+
+    /**
+     * Output of a fake context which only counts the records.
+     */
+    public static class NullWriter<K,V> extends RecordWriter<K,V> {
+
+        public long written;
+
+        public void write(K key, V value) {
+            written++;
+        }
+
+        public void close(TaskAttemptContext context) {
+        }
+    }
+
+    /**
+     * Output of a fake context which copies the records and groups them by key, like the shuffle.
+     */
+    public static class Collector<K extends Writable, V extends Writable> extends RecordWriter<K,V> {
+
+        private final Configuration conf;
+        private final TreeMap<K,List<V>> groups = new TreeMap<K,List<V>>();
+
+        public Collector(Configuration conf) {
+            this.conf = conf;
+        }
+
+        public void write(K key, V value) {
+            List<V> values = groups.get(key);
+            if (values == null) {
+                values = new ArrayList<V>();
+                groups.put(WritableUtils.clone(key, conf), values);
+            }
+            values.add(WritableUtils.clone(value, conf));
+        }
+
+        public void close(TaskAttemptContext context) {
+        }
+
+        public List<K> keys() {
+            return new ArrayList<K>(groups.keySet());
+        }
+
+        public List<List<V>> values() {
+            return new ArrayList<List<V>>(groups.values());
+        }
+
+        /** Every value, in key order. */
+        public List<V> allValues() {
+            List<V> all = new ArrayList<V>();
+            for (List<V> values : groups.values())
+                all.addAll(values);
+            return all;
+        }
+    }
+
+    /** The reducers are called directly with their values, so the reduce context never reads its input. */
+    private static final RawKeyValueIterator NO_INPUT = new RawKeyValueIterator() {
+        public DataInputBuffer getKey() {
+            return null;
+        }
+
+        public DataInputBuffer getValue() {
+            return null;
+        }
+
+        public boolean next() {
+            return false;
+        }
+
+        public void close() {
+        }
+
+        public Progress getProgress() {
+            return new Progress();
+        }
+    };
+
+    public static <KI,VI,KO,VO> Mapper<KI,VI,KO,VO>.Context mapContext(
+            Mapper<KI,VI,KO,VO> mapper, Configuration conf, RecordWriter<KO,VO> output) {
+        MapContext<KI,VI,KO,VO> context = new MapContextImpl<KI,VI,KO,VO>(conf, new TaskAttemptID(),
+                null, output, null, new BenchmarkReporter(), null);
+        return new WrappedMapper<KI,VI,KO,VO>().getMapContext(context);
+    }
+
+    public static <KI,VI,KO,VO> Reducer<KI,VI,KO,VO>.Context reduceContext(
+            Reducer<KI,VI,KO,VO> reducer, Configuration conf, RecordWriter<KO,VO> output,
+            Class<KI> key_class, Class<VI> value_class) throws IOException, InterruptedException {
+        ReduceContext<KI,VI,KO,VO> context = new ReduceContextImpl<KI,VI,KO,VO>(conf, new TaskAttemptID(),
+                NO_INPUT, null, null, output, null, new BenchmarkReporter(), null, key_class, value_class);
+        return new WrappedReducer<KI,VI,KO,VO>().getReducerContext(context);
+    }
+
+    /** Lines per simulated map task, so that the reducers receive several partial values per key. */
+    public static final int LINES_PER_SPLIT = 1000;
+
+    /**
+     * Mappers and reducers of EnedisBySector, each stage being fed with the collected output of the previous one.
+     */
+    public static void sectorSuite() throws Exception {
+        final Configuration conf = new Configuration();
+        final Text[] lines = generateLines(RECORDS, 2);
+        final LongWritable offset = new LongWritable();
+
+        Collector<GroupKey,EnedisBySector.SectorCounts> partial_counts = new Collector<GroupKey,EnedisBySector.SectorCounts>(conf);
+        EnedisBySector.PerDepartmentMapper collecting_mapper = new EnedisBySector.PerDepartmentMapper();
+        Mapper<LongWritable,Text,GroupKey,EnedisBySector.SectorCounts>.Context collecting_context =
+                mapContext(collecting_mapper, conf, partial_counts);
+        collecting_mapper.setup(collecting_context);
+        for (int r = 0; r < RECORDS; r++) {
+            collecting_mapper.map(offset, lines[r], collecting_context);
+            if ((r + 1) % LINES_PER_SPLIT == 0)
+                collecting_mapper.cleanup(collecting_context);
+        }
+
+        Collector<GroupKey,EnedisBySector.SectorCounts> department_counts = new Collector<GroupKey,EnedisBySector.SectorCounts>(conf);
+        EnedisBySector.PerSectorCountReducer collecting_reducer = new EnedisBySector.PerSectorCountReducer();
+        Reducer<GroupKey,EnedisBySector.SectorCounts,GroupKey,EnedisBySector.SectorCounts>.Context collecting_reduce_context =
+                reduceContext(collecting_reducer, conf, department_counts, GroupKey.class, EnedisBySector.SectorCounts.class);
+        final List<GroupKey> departments = partial_counts.keys();
+        final List<List<EnedisBySector.SectorCounts>> partials = partial_counts.values();
+        for (int g = 0; g < departments.size(); g++)
+            collecting_reducer.reduce(departments.get(g), partials.get(g), collecting_reduce_context);
+
+        Collector<GroupKey,EnedisBySector.DepartmentCount> max_sectors = new Collector<GroupKey,EnedisBySector.DepartmentCount>(conf);
+        EnedisBySector.ExtractMaxSectorMapper collecting_extract = new EnedisBySector.ExtractMaxSectorMapper();
+        Mapper<GroupKey,EnedisBySector.SectorCounts,GroupKey,EnedisBySector.DepartmentCount>.Context collecting_extract_context =
+                mapContext(collecting_extract, conf, max_sectors);
+        collecting_extract.setup(collecting_extract_context);
+        final List<GroupKey> counted_departments = department_counts.keys();
+        final List<EnedisBySector.SectorCounts> counts = department_counts.allValues();
+        for (int d = 0; d < counts.size(); d++)
+            collecting_extract.map(counted_departments.get(d), counts.get(d), collecting_extract_context);
+
+        final EnedisBySector.PerDepartmentMapper mapper = new EnedisBySector.PerDepartmentMapper();
+        final Mapper<LongWritable,Text,GroupKey,EnedisBySector.SectorCounts>.Context map_context =
+                mapContext(mapper, conf, new NullWriter<GroupKey,EnedisBySector.SectorCounts>());
+        mapper.setup(map_context);
+        measure("sector.PerDepartmentMapper.map", RECORDS, r -> {
+            mapper.map(offset, lines[r], map_context);
+            if ((r + 1) % LINES_PER_SPLIT == 0)
+                mapper.cleanup(map_context);
+        });
+
+        final EnedisBySector.PerSectorCountReducer reducer = new EnedisBySector.PerSectorCountReducer();
+        final Reducer<GroupKey,EnedisBySector.SectorCounts,GroupKey,EnedisBySector.SectorCounts>.Context reduce_context =
+                reduceContext(reducer, conf, new NullWriter<GroupKey,EnedisBySector.SectorCounts>(),
+                        GroupKey.class, EnedisBySector.SectorCounts.class);
+        measure("sector.PerSectorCountReducer.reduce", RECORDS, r -> {
+            int g = r % departments.size();
+            reducer.reduce(departments.get(g), partials.get(g), reduce_context);
+        });
+
+        final EnedisBySector.ExtractMaxSectorMapper extract = new EnedisBySector.ExtractMaxSectorMapper();
+        final Mapper<GroupKey,EnedisBySector.SectorCounts,GroupKey,EnedisBySector.DepartmentCount>.Context extract_context =
+                mapContext(extract, conf, new NullWriter<GroupKey,EnedisBySector.DepartmentCount>());
+        extract.setup(extract_context);
+        measure("sector.ExtractMaxSectorMapper.map", RECORDS, r -> {
+            int d = r % counts.size();
+            extract.map(counted_departments.get(d), counts.get(d), extract_context);
+        });
+
+        final List<GroupKey> sectors = max_sectors.keys();
+        final List<List<EnedisBySector.DepartmentCount>> department_maxima = max_sectors.values();
+        final EnedisBySector.SectorTopKCombiner top_combiner = new EnedisBySector.SectorTopKCombiner();
+        final Reducer<GroupKey,EnedisBySector.DepartmentCount,GroupKey,EnedisBySector.DepartmentCount>.Context combine_context =
+                reduceContext(top_combiner, conf, new NullWriter<GroupKey,EnedisBySector.DepartmentCount>(),
+                        GroupKey.class, EnedisBySector.DepartmentCount.class);
+        top_combiner.setup(combine_context);
+        measure("sector.SectorTopKCombiner.reduce", RECORDS, r -> {
+            int g = r % sectors.size();
+            top_combiner.reduce(sectors.get(g), department_maxima.get(g), combine_context);
+        });
+
+        final EnedisBySector.ParSectorDepartmentWithMaxCountReducer max_reducer =
+                new EnedisBySector.ParSectorDepartmentWithMaxCountReducer();
+        final Reducer<GroupKey,EnedisBySector.DepartmentCount,Text,Text>.Context max_context =
+                reduceContext(max_reducer, conf, new NullWriter<Text,Text>(),
+                        GroupKey.class, EnedisBySector.DepartmentCount.class);
+        max_reducer.setup(max_context);
+        measure("sector.ParSectorDepartmentWithMaxCountReducer.reduce", RECORDS, r -> {
+            int g = r % sectors.size();
+            max_reducer.reduce(sectors.get(g), department_maxima.get(g), max_context);
+        });
+
+        final float[][] avgs = new float[RECORDS][];
+        final FieldTokenizer cols = new FieldTokenizer(';');
+        for (int r = 0; r < RECORDS; r++)
+            avgs[r] = EnedisBySector.extractSectorAvgs(cols.reset(lines[r]), new float[EnedisBySector.SECTORLABELS.length]);
+        measure("sector.getMaxSector", RECORDS, r -> {
+            blackhole = EnedisBySector.getMaxSector(avgs[r]);
+        });
+    }
+
+    /**
+     * Mappers and reducers of EnedisByConsumption, each stage being fed with the collected output of the previous one.
+     */
+    public static void consumptionSuite() throws Exception {
+        final Configuration conf = new Configuration();
+        final Text[] lines = generateLines(RECORDS, 3);
+        final LongWritable offset = new LongWritable();
+
+        Collector<GroupKey,EnedisByConsumption.CommuneTotal> commune_rows = new Collector<GroupKey,EnedisByConsumption.CommuneTotal>(conf);
+        EnedisByConsumption.Mapper1 collecting_mapper1 = new EnedisByConsumption.Mapper1();
+        Mapper<LongWritable,Text,GroupKey,EnedisByConsumption.CommuneTotal>.Context collecting_context1 =
+                mapContext(collecting_mapper1, conf, commune_rows);
+        collecting_mapper1.setup(collecting_context1);
+        for (int r = 0; r < RECORDS; r++)
+            collecting_mapper1.map(offset, lines[r], collecting_context1);
+
+        Collector<GroupKey,EnedisByConsumption.CommuneRecord> averages = new Collector<GroupKey,EnedisByConsumption.CommuneRecord>(conf);
+        EnedisByConsumption.Reduce1 collecting_reduce1 = new EnedisByConsumption.Reduce1();
+        Reducer<GroupKey,EnedisByConsumption.CommuneTotal,GroupKey,EnedisByConsumption.CommuneRecord>.Context collecting_reduce_context1 =
+                reduceContext(collecting_reduce1, conf, averages, GroupKey.class, EnedisByConsumption.CommuneTotal.class);
+        collecting_reduce1.setup(collecting_reduce_context1);
+        final List<GroupKey> communes = commune_rows.keys();
+        final List<List<EnedisByConsumption.CommuneTotal>> rows = commune_rows.values();
+        for (int g = 0; g < communes.size(); g++)
+            collecting_reduce1.reduce(communes.get(g), rows.get(g), collecting_reduce_context1);
+
+        final List<GroupKey> averaged_communes = averages.keys();
+        final List<EnedisByConsumption.CommuneRecord> records = averages.allValues();
+        final QuantileSketch[] sketches = collecting_reduce1.getSketches();
+        EnedisByConsumption.Thresholds thresholds = new EnedisByConsumption.Thresholds();
+        for (int m = 0; m < sketches.length; m++) {
+            String metric = EnedisByConsumption.METRICS[m];
+            thresholds.readMinMaxLine(metric + "\t" + EnedisByConsumption.formatMinMax(conf, metric, sketches[m]));
+        }
+        thresholds.write(conf);
+
+        Collector<ByteWritable,EnedisByConsumption.CommuneCategories> categories =
+                new Collector<ByteWritable,EnedisByConsumption.CommuneCategories>(conf);
+        EnedisByConsumption.Mapper2 collecting_mapper2 = new EnedisByConsumption.Mapper2();
+        Mapper<GroupKey,EnedisByConsumption.CommuneRecord,ByteWritable,EnedisByConsumption.CommuneCategories>.Context collecting_context2 =
+                mapContext(collecting_mapper2, conf, categories);
+        collecting_mapper2.setup(collecting_context2);
+        for (int c = 0; c < records.size(); c++)
+            collecting_mapper2.map(averaged_communes.get(c), records.get(c), collecting_context2);
+
+        final EnedisByConsumption.Mapper1 mapper1 = new EnedisByConsumption.Mapper1();
+        final Mapper<LongWritable,Text,GroupKey,EnedisByConsumption.CommuneTotal>.Context context1 =
+                mapContext(mapper1, conf, new NullWriter<GroupKey,EnedisByConsumption.CommuneTotal>());
+        mapper1.setup(context1);
+        measure("consumption.Mapper1.map", RECORDS, r -> {
+            mapper1.map(offset, lines[r], context1);
+        });
+
+        final EnedisByConsumption.Reduce1 reduce1 = new EnedisByConsumption.Reduce1();
+        final Reducer<GroupKey,EnedisByConsumption.CommuneTotal,GroupKey,EnedisByConsumption.CommuneRecord>.Context reduce_context1 =
+                reduceContext(reduce1, conf, new NullWriter<GroupKey,EnedisByConsumption.CommuneRecord>(),
+                        GroupKey.class, EnedisByConsumption.CommuneTotal.class);
+        reduce1.setup(reduce_context1);
+        measure("consumption.Reduce1.reduce", RECORDS, r -> {
+            int g = r % communes.size();
+            reduce1.reduce(communes.get(g), rows.get(g), reduce_context1);
+        });
+
+        measure("consumption.mergeSketches", RECORDS / 10, r -> {
+            QuantileSketch sketch = sketches[r % sketches.length];
+            blackhole += EnedisByConsumption.mergeSketches(Collections.singletonList(sketch), conf).getCount();
+        });
+
+        final EnedisByConsumption.Mapper2 mapper2 = new EnedisByConsumption.Mapper2();
+        final Mapper<GroupKey,EnedisByConsumption.CommuneRecord,ByteWritable,EnedisByConsumption.CommuneCategories>.Context context2 =
+                mapContext(mapper2, conf, new NullWriter<ByteWritable,EnedisByConsumption.CommuneCategories>());
+        mapper2.setup(context2);
+        measure("consumption.Mapper2.map", RECORDS, r -> {
+            int c = r % records.size();
+            mapper2.map(averaged_communes.get(c), records.get(c), context2);
+        });
+
+        final List<ByteWritable> conso_categories = categories.keys();
+        final List<List<EnedisByConsumption.CommuneCategories>> category_values = categories.values();
+        // Reducer2 writes the joint counts to its crosstab output, in a temporary directory
+        java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("enedis-crosstab");
+        Path work = new Path(directory.toUri().toString());
+        try {
+            Job crosstab_job = Job.getInstance(conf);
+            MultipleOutputs.addNamedOutput(crosstab_job, EnedisByConsumption.CROSSTAB_OUTPUT, SequenceFileOutputFormat.class,
+                    ByteWritable.class, EnedisByConsumption.JointCounts.class);
+            FileOutputFormat.setOutputPath(crosstab_job, work);
+            final EnedisByConsumption.Reducer2 reducer2 = new EnedisByConsumption.Reducer2();
+            final Reducer<ByteWritable,EnedisByConsumption.CommuneCategories,Text,Text>.Context reduce_context2 =
+                    reduceContext(reducer2, crosstab_job.getConfiguration(), new NullWriter<Text,Text>(),
+                            ByteWritable.class, EnedisByConsumption.CommuneCategories.class);
+            reducer2.setup(reduce_context2);
+            measure("consumption.Reducer2.reduce", RECORDS / 10, r -> {
+                int g = r % conso_categories.size();
+                reducer2.reduce(conso_categories.get(g), category_values.get(g), reduce_context2);
+            });
+            reducer2.cleanup(reduce_context2);
+        } finally {
+            FileSystem.getLocal(conf).delete(work, true);
+        }
+
+        final FieldTokenizer[] tokenized = new FieldTokenizer[RECORDS];
+        for (int r = 0; r < RECORDS; r++)
+            tokenized[r] = new FieldTokenizer(';').reset(lines[r]);
+        measure("consumption.extractSurfaceWithMaxPercentages", RECORDS, r -> {
+            blackhole = EnedisByConsumption.extractSurfaceWithMaxPercentages(tokenized[r]);
+        });
+        measure("consumption.extractResidenceWithMaxPercentages", RECORDS, r -> {
+            blackhole = EnedisByConsumption.extractResidenceWithMaxPercentages(tokenized[r]);
+        });
+    }
+
+    /** Codecs compared by the codecs suite, by their name for --map-codec and --output-codec. */
+    public static final String[] CODECS = {"none", "default", "gzip", "bzip2", "snappy", "lz4", "zstd"};
+
+    /**
+     * Compression of the intermediate records of EnedisByConsumption, the largest of both analyses:
+     * the map output of Mapper1 (the shuffle of FirstRun) and the output of Reduce1 (conso-output) are
+     * written to a block-compressed SequenceFile with each codec, then read back. For each codec, the median
+     * times to write and read the whole file and its size are printed. The codecs which need a native
+     * library that is not loaded are reported as unavailable.
+     *
+     * @param lines: lines of the dataset, or null to generate them
+     */
+    public static void codecsSuite(Text[] lines) throws Exception {
+        final Configuration conf = new Configuration();
+        if (lines == null)
+            lines = generateLines(RECORDS, 4);
+        final LongWritable offset = new LongWritable();
+
+        Collector<GroupKey,EnedisByConsumption.CommuneTotal> commune_rows =
+                new Collector<GroupKey,EnedisByConsumption.CommuneTotal>(conf);
+        EnedisByConsumption.Mapper1 mapper1 = new EnedisByConsumption.Mapper1();
+        Mapper<LongWritable,Text,GroupKey,EnedisByConsumption.CommuneTotal>.Context context1 =
+                mapContext(mapper1, conf, commune_rows);
+        mapper1.setup(context1);
+        for (Text line : lines)
+            mapper1.map(offset, line, context1);
+
+        Collector<GroupKey,EnedisByConsumption.CommuneRecord> averages =
+                new Collector<GroupKey,EnedisByConsumption.CommuneRecord>(conf);
+        EnedisByConsumption.Reduce1 reduce1 = new EnedisByConsumption.Reduce1();
+        Reducer<GroupKey,EnedisByConsumption.CommuneTotal,GroupKey,EnedisByConsumption.CommuneRecord>.Context reduce_context1 =
+                reduceContext(reduce1, conf, averages, GroupKey.class, EnedisByConsumption.CommuneTotal.class);
+        reduce1.setup(reduce_context1);
+        List<GroupKey> communes = commune_rows.keys();
+        List<List<EnedisByConsumption.CommuneTotal>> rows = commune_rows.values();
+        for (int g = 0; g < communes.size(); g++)
+            reduce1.reduce(communes.get(g), rows.get(g), reduce_context1);
+
+        java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("enedis-codecs");
+        try {
+            for (String codec : CODECS) {
+                Path file = new Path(directory.toUri().toString(), codec);
+                measureFile("codecs.Mapper1.output." + codec, conf, codec, file, communes, rows,
+                        EnedisByConsumption.CommuneTotal.class);
+                measureFile("codecs.Reduce1.output." + codec, conf, codec, file, averages.keys(), averages.values(),
+                        EnedisByConsumption.CommuneRecord.class);
+            }
+        } finally {
+            FileSystem.getLocal(conf).delete(new Path(directory.toUri().toString()), true);
+        }
+    }
+
+    /**
+     * Write the records to *file* with a codec and read them back, with warmup iterations first.
+     */
+    public static <V extends Writable> void measureFile(String name, Configuration conf, String codec_name, Path file,
+                                                        List<GroupKey> keys, List<List<V>> values,
+                                                        Class<V> value_class) throws Exception {
+        SequenceFile.Writer.Option compression;
+        if (codec_name.equals(EnedisJobs.NO_CODEC)) {
+            compression = SequenceFile.Writer.compression(SequenceFile.CompressionType.NONE);
+        } else {
+            try {
+                compression = SequenceFile.Writer.compression(SequenceFile.CompressionType.BLOCK,
+                        EnedisJobs.getSequenceFileCodec(conf, codec_name));
+            } catch (IOException e) {
+                System.out.println(String.format(Locale.ROOT, "%-55s unavailable (%s)", name, e.getMessage()));
+                return;
+            }
+        }
+
+        long records = 0;
+        double[] write_ms = new double[MEASURE_ITERATIONS];
+        double[] read_ms = new double[MEASURE_ITERATIONS];
+        for (int it = -WARMUP_ITERATIONS; it < MEASURE_ITERATIONS; it++) {
+            long start = System.nanoTime();
+            SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(file),
+                    SequenceFile.Writer.keyClass(GroupKey.class), SequenceFile.Writer.valueClass(value_class),
+                    compression);
+            try {
+                for (int g = 0; g < keys.size(); g++) {
+                    for (V value : values.get(g))
+                        writer.append(keys.get(g), value);
+                }
+            } finally {
+                writer.close();
+            }
+            long written = System.nanoTime();
+
+            GroupKey key = new GroupKey();
+            V value = ReflectionUtils.newInstance(value_class, conf);
+            records = 0;
+            SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file));
+            try {
+                while (reader.next(key, value))
+                    records++;
+            } finally {
+                reader.close();
+            }
+            long read = System.nanoTime();
+
+            if (it >= 0) {
+                write_ms[it] = (written - start) / 1e6;
+                read_ms[it] = (read - written) / 1e6;
+            }
+        }
+        Arrays.sort(write_ms);
+        Arrays.sort(read_ms);
+        long bytes = FileSystem.getLocal(conf).getFileStatus(file).getLen();
+
+        System.out.println(String.format(Locale.ROOT, "%-55s %8.2f ms write %8.2f ms read %10d bytes %8.1f B/record",
+                name, write_ms[MEASURE_ITERATIONS / 2], read_ms[MEASURE_ITERATIONS / 2], bytes,
+                (double) bytes / records));
+    }
+
+    /** Lines generated for the scaling suite without --input. */
+    public static final int SCALING_RECORDS = 200000;
+
+    /**
+     * Wall time of both analyses run by their drivers in the local runner with --threads 1, 2, 4...
+     * up to the number of cores (at least 2), and the speedup against one thread. The jobs read the dataset
+     * given by --input (local file or directory), or generated lines. Only run when named, since it runs the jobs.
+     *
+     * @throws IllegalStateException if the text outputs of a run differ from the ones with one thread
+     */
+    public static void scalingSuite(String input) throws Exception {
+        Configuration conf = new Configuration();
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> thread_counts = new ArrayList<Integer>();
+        int max_threads = Math.max(cores, 2);
+        for (int threads = 1; threads < max_threads; threads *= 2)
+            thread_counts.add(threads);
+        thread_counts.add(max_threads);
+
+        java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("enedis-scaling");
+        Path work = new Path(directory.toUri().toString());
+        try {
+            if (input == null) {
+                Path generated = new Path(work, "input");
+                List<String> lines = new ArrayList<String>();
+                for (Text line : generateLines(SCALING_RECORDS, 5))
+                    lines.add(line.toString());
+                EnedisJobs.writeLines(conf, generated, lines);
+                input = generated.toString();
+            }
+
+            List<String> results = new ArrayList<String>();
+            List<String> different = new ArrayList<String>();
+            double[] single = new double[2];
+            List<List<String>> single_outputs = new ArrayList<List<String>>();
+            for (int threads : thread_counts) {
+                String[] drivers = {"EnedisBySector", "EnedisByConsumption"};
+                for (int d = 0; d < drivers.length; d++) {
+                    Path output = new Path(work, drivers[d] + "-" + threads);
+                    String[] args = {"--threads", Integer.toString(threads), input, output.toString()};
+                    long start = System.nanoTime();
+                    if (d == 0)
+                        EnedisBySector.main(args);
+                    else
+                        EnedisByConsumption.main(args);
+                    double elapsed_ms = (System.nanoTime() - start) / 1e6;
+                    List<String> outputs = EnedisJobs.readLines(conf, output.suffix("-final"));
+                    if (d == 1)
+                        outputs.addAll(EnedisJobs.readLines(conf, output.suffix("-minmax")));
+                    if (threads == 1) {
+                        single[d] = elapsed_ms;
+                        single_outputs.add(outputs);
+                    }
+                    boolean same = outputs.equals(single_outputs.get(d));
+                    if (!same)
+                        different.add(drivers[d] + " --threads " + threads);
+                    results.add(String.format(Locale.ROOT, "%-55s %10.0f ms %8.2fx  %s",
+                            "scaling." + drivers[d] + ".threads=" + threads, elapsed_ms, single[d] / elapsed_ms,
+                            same ? "same output" : "DIFFERENT OUTPUT"));
+                }
+            }
+            for (String result : results)
+                System.out.println(result);
+            if (!different.isEmpty())
+                throw new IllegalStateException("The outputs differ from the ones with one thread: " + different);
+        } finally {
+            FileSystem.getLocal(conf).delete(work, true);
+        }
+    }
+
+    /**
+     * Time of the loading of the dataset by the in-memory engine (EnedisLocal.Dataset.load: mapping,
+     * line splitting and parsing of every used column) with pools of 1, 2, 4... up to the number of cores
+     * threads, its throughput in MB/s and the speedup against one thread. It reads the dataset given by
+     * --input (local file or directory), or generated lines.
+     */
+    public static void ingestSuite(String input) throws Exception {
+        Configuration conf = new Configuration();
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> thread_counts = new ArrayList<Integer>();
+        for (int threads = 1; threads < cores; threads *= 2)
+            thread_counts.add(threads);
+        thread_counts.add(cores);
+
+        java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("enedis-ingest");
+        Path work = new Path(directory.toUri().toString());
+        try {
+            Path path;
+            if (input == null) {
+                path = new Path(work, "input");
+                List<String> lines = new ArrayList<String>();
+                for (Text line : generateLines(SCALING_RECORDS, 5))
+                    lines.add(line.toString());
+                EnedisJobs.writeLines(conf, path, lines);
+            } else
+                path = new Path(input);
+            FileSystem fs = path.getFileSystem(conf);
+            long bytes = fs.getContentSummary(path).getLength();
+
+            double single = 0;
+            for (int threads : thread_counts) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    int lines = 0;
+                    for (int i = 0; i < WARMUP_ITERATIONS; i++)
+                        lines = EnedisLocal.Dataset.load(conf, path, pool).size();
+                    double[] load_ms = new double[MEASURE_ITERATIONS];
+                    for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+                        long start = System.nanoTime();
+                        blackhole += EnedisLocal.Dataset.load(conf, path, pool).size();
+                        load_ms[i] = (System.nanoTime() - start) / 1e6;
+                    }
+                    Arrays.sort(load_ms);
+                    double elapsed_ms = load_ms[MEASURE_ITERATIONS / 2];
+                    if (threads == 1)
+                        single = elapsed_ms;
+                    System.out.println(String.format(Locale.ROOT, "%-55s %10.1f ms %8.1f MB/s %12.0f lines/s %8.2fx",
+                            "ingest.Dataset.load.threads=" + threads, elapsed_ms, bytes / 1e3 / elapsed_ms,
+                            lines * 1e3 / elapsed_ms, single / elapsed_ms));
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        } finally {
+            FileSystem.getLocal(conf).delete(work, true);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> suites = new ArrayList<String>();
+        String input = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--input") && i + 1 < args.length)
+                input = args[++i];
+            else
+                suites.add(args[i]);
+        }
+        boolean all = suites.isEmpty();
+
+        if (all || suites.contains("parse"))
+            parseSuite();
+        if (all || suites.contains("keys"))
+            keysSuite();
+        if (all || suites.contains("sector"))
+            sectorSuite();
+        if (all || suites.contains("consumption"))
+            consumptionSuite();
+        if (all || suites.contains("codecs"))
+            codecsSuite(input == null ? null : readLines(input));
+        if (all || suites.contains("ingest"))
+            ingestSuite(input);
+        if (suites.contains("scaling"))
+            scalingSuite(input);
+    }
+}
@@ -1,29 +1,32 @@
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.util.*;
 import java.text.DecimalFormat;
 import java.math.RoundingMode;
-import java.io.File;
-import java.util.Scanner;
 
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.conf.*;
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.mapreduce.*;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 /**
  *
  * 2 Map-Reduce passes
  *
  * Map 1 : Get input line and extract info on consumption, surface, heating, collective housing, population
- * Reduce 1 : Per category, calculate average per commune
- *            -> Fix max and min values for consumption, heating, population
- *            -> Use these values to dynamically split the corresponding categories
+ * Reduce 1 : Per category, calculate average consumption per site of each commune
+ *            -> Sketch the quantiles of consumption, housing, heating, population in a side output
+ * Driver : Merge the sketches to fix the thresholds which dynamically split the corresponding categories
  * Map 2 : Assign to consumption category and output the rest
- * Reduce 2 : Per category, count values in each interval and get max
+ * Reduce 2 : Per category, count the communes in each cell of the other categories (crosstab side output)
+ *            and get the interval with the most communes of each category
  */
 
 public class EnedisByConsumption {
@@ -38,96 +41,529 @@ public class EnedisByConsumption {
             "Résidences âge moyen(>1970, <=2010)",
             "Résidences récentes(>2010)"};
 
-    public static String[] CONSOLABELS =
-            {"Conso très basse",
-            "Conso basse",
-            "Conso modérée",
-            "Conso élevée"};
-
-    public static String[] HEATINGLABELS =
-            {"Taux chauffage électr. très bas",
-            "Taux chauffage électr. bas",
-            "Taux chauffage électr. moyen",
-            "Taux chauffage électr. élevé"};
-
-    public static String[] COLLECTIVEHOUSINGLABELS =
-            {"Taux logements collectifs très bas",
-            "Taux logements collectifs bas",
-            "Taux logements collectifs moyen",
-            "Taux logements collectifs élevé"};
-
-    public static String[] POPULATIONLABELS =
-            {"Nombre habitants bas",
-            "Nombre habitants moyen",
-            "Nombre habitants élevé"};
-
     public static final double EPSILON = 0.01;
 
-    public static Float global_25_conso = Float.MIN_VALUE;
-    public static Float global_50_conso = Float.MIN_VALUE;
-    public static Float global_75_conso = Float.MIN_VALUE;
+    /** Columns of the dataset read by Mapper1, besides the codes of the grain (see getColumns). */
+    public static final String COLUMNS = "0,10,11,24,25,27-40";
 
-    public static Float global_25_heating = Float.MIN_VALUE;
-    public static Float global_50_heating = Float.MIN_VALUE;
-    public static Float global_75_heating = Float.MIN_VALUE;
+    /** Name of the per-year partial aggregates of this analysis in the state directory. */
+    public static final String STATE_NAME = "conso";
 
-    public static Float global_25_housing = Float.MIN_VALUE;
-    public static Float global_50_housing = Float.MIN_VALUE;
-    public static Float global_75_housing = Float.MIN_VALUE;
+    /**
+     * Grain of the averages, i.e. the dimensions of GroupKey whose lines are averaged together and then
+     * categorised, e.g. "commune" (default), "year,commune" or "department".
+     */
+    public static final String GRAIN_PROPERTY = "enedis.conso.grain";
+    public static final String DEFAULT_GRAIN = "commune";
+
+    public static int getGrain(Configuration conf) {
+        return GroupKey.parseGrouping(conf.get(GRAIN_PROPERTY, DEFAULT_GRAIN));
+    }
 
-    public static Float global_33_population = Float.MIN_VALUE;
-    public static Float global_66_population = Float.MIN_VALUE;
+    /**
+     * @return the columns read by Mapper1 with the grain of *conf*
+     */
+    public static String getColumns(Configuration conf) {
+        return COLUMNS + GroupKey.getColumns(new int[]{getGrain(conf)});
+    }
 
-    public static class ValuesMapper extends Mapper<LongWritable, Text, Text, Text>{
+    public static final String THRESHOLDS_PREFIX = "enedis.thresholds.";
 
-        public void map(LongWritable key, Text value, Context context)
-                throws IOException, InterruptedException {
-            String conso = value.toString().split("\t")[0];
-            String[] values = value.toString().split("\t")[1].split(":");
+    /**
+     * Stages given one reducer per thread by --threads. FirstRun and MergeRun keep theirs: their Reduce1 sketches
+     * the quantiles, and the merged sketches, hence the thresholds, depend on how the communes are partitioned.
+     */
+    private static final String[] THREAD_STAGES = {"YearRun"};
+
+    /** Metrics of the communes whose quantiles give the thresholds of the categories. */
+    public static final String[] METRICS = {"conso", "housing", "heating", "population"};
+    private static final int CONSO = 0, HOUSING = 1, HEATING = 2, POPULATION = 3;
+
+    /**
+     * Number of quantile buckets of the metrics, e.g. 10 for deciles: enedis.conso.buckets for all the metrics,
+     * or enedis.conso.buckets.<metric> for one of them. By default, quartiles, and terciles for the population.
+     */
+    public static final String BUCKETS_PROPERTY = "enedis.conso.buckets";
+    public static final int[] DEFAULT_BUCKETS = {4, 4, 4, 3};
+    public static final int MAX_BUCKETS = 100;
+
+    // labels of the buckets: prefix, name of each bucket for the default number of buckets, unit of the bounds
+    private static final String[] LABEL_PREFIXES = {"Conso", "Taux logements coll.", "Taux chauff. électr.", "Nb habitants"};
+    private static final String[][] BUCKET_NAMES = {
+            {"très basse", "basse", "modérée", "élevée"},
+            {"très bas", "bas", "moyen", "élevé"},
+            {"très bas", "bas", "moyen", "élevé"},
+            {"bas", "moyen", "élevé"}};
+    private static final String[] UNITS = {"MWh", "%", "%", ""};
+
+    /**
+     * Named output of the joint counts of the categories, one JointCounts per consumption bucket, written in
+     * the crosstab directory of the final output (e.g. conso-output-final/crosstab/part-r-00000).
+     */
+    public static final String CROSSTAB_OUTPUT = "crosstab";
+
+    /**
+     * Largest number of cells of the joint counts over all the consumption buckets (16 MB of counts), so that
+     * the table of a bucket always fits in the memory of a reducer, and all of them in the one of EnedisLocal.
+     */
+    public static final int MAX_CROSSTAB_CELLS = 1 << 22;
+
+    public static int getBuckets(Configuration conf, int metric) {
+        int buckets = conf.getInt(BUCKETS_PROPERTY + "." + METRICS[metric],
+                conf.getInt(BUCKETS_PROPERTY, DEFAULT_BUCKETS[metric]));
+        if (buckets < 2 || buckets > MAX_BUCKETS)
+            throw new IllegalArgumentException("The number of buckets of " + METRICS[metric]
+                    + " must be between 2 and " + MAX_BUCKETS + ": " + buckets);
+        return buckets;
+    }
+
+    /**
+     * Check the number of buckets of every metric, and that the joint counts of all the categories fit in
+     * MAX_CROSSTAB_CELLS cells.
+     *
+     * @throws IllegalArgumentException if they do not
+     */
+    public static void checkBuckets(Configuration conf) {
+        long cells = (long) SURFACELABELS.length * RESIDENCYLABELS.length;
+        for (int m = 0; m < METRICS.length; m++)
+            cells *= getBuckets(conf, m);
+        if (cells > MAX_CROSSTAB_CELLS)
+            throw new IllegalArgumentException("The buckets of the metrics give " + cells
+                    + " joint counts, more than " + MAX_CROSSTAB_CELLS + ": use fewer " + BUCKETS_PROPERTY);
+    }
+
+    /**
+     * Named output of the quantile sketches of the metrics, one per metric and reducer of the first job,
+     * written in the sketches directory of its output (e.g. conso-output/sketches/part-r-00000).
+     */
+    public static final String SKETCHES_OUTPUT = "sketches";
+
+    /**
+     * Residential data of one commune, as passed from Mapper1 to Reduce1 and from Reduce1 to the
+     * next jobs. Surface and residence are indexes in SURFACELABELS and RESIDENCYLABELS.
+     */
+    public static class CommuneRecord implements Writable {
+
+        private short year;
+        private float consumption;
+        private float housing;
+        private float heating;
+        private float population;
+        private byte surface;
+        private byte residence;
+
+        public void set(int year, float consumption, float housing, float heating, float population,
+                        int surface, int residence) {
+            this.year = (short) year;
+            this.consumption = consumption;
+            this.housing = housing;
+            this.heating = heating;
+            this.population = population;
+            this.surface = (byte) surface;
+            this.residence = (byte) residence;
+        }
 
-            context.write(new Text("conso"), new Text(conso));
-            context.write(new Text("housing"), new Text(values[0]));
-            context.write(new Text("heating"), new Text(values[3]));
-            context.write(new Text("population"), new Text(values[4]));
+        public int getYear() {
+            return year;
+        }
+
+        public float getConsumption() {
+            return consumption;
+        }
+
+        public float getHousing() {
+            return housing;
+        }
+
+        public float getHeating() {
+            return heating;
+        }
+
+        public float getPopulation() {
+            return population;
+        }
+
+        public int getSurface() {
+            return surface;
+        }
+
+        public int getResidence() {
+            return residence;
+        }
+
+        /**
+         * Order used to pick the row whose descriptive values (housing, heating, population, surface,
+         * residence) represent a commune: the most recent year, then the largest values. It does not
+         * depend on the order in which the rows reach the reducer.
+         *
+         * @return true if this row should be kept instead of *other*
+         */
+        public boolean follows(CommuneRecord other) {
+            if (year != other.year)
+                return year > other.year;
+            if (consumption != other.consumption)
+                return consumption > other.consumption;
+            if (housing != other.housing)
+                return housing > other.housing;
+            if (heating != other.heating)
+                return heating > other.heating;
+            if (population != other.population)
+                return population > other.population;
+            if (surface != other.surface)
+                return surface > other.surface;
+            return residence > other.residence;
+        }
+
+        public void set(CommuneRecord other) {
+            set(other.year, other.consumption, other.housing, other.heating, other.population,
+                    other.surface, other.residence);
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            out.writeShort(year);
+            out.writeFloat(consumption);
+            out.writeFloat(housing);
+            out.writeFloat(heating);
+            out.writeFloat(population);
+            out.writeByte(surface);
+            out.writeByte(residence);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            year = in.readShort();
+            consumption = in.readFloat();
+            housing = in.readFloat();
+            heating = in.readFloat();
+            population = in.readFloat();
+            surface = in.readByte();
+            residence = in.readByte();
+        }
+
+        @Override
+        public String toString() {
+            return year + ":" + consumption + ":" + housing + ":" + SURFACELABELS[surface] + ":"
+                    + RESIDENCYLABELS[residence] + ":" + heating + ":" + population;
         }
     }
-    public static class MinMaxReducer extends Reducer<Text,Text,Text,Text> {
 
-        public void reduce(Text key, Iterable<Text> values,
-                           Context context
-        ) throws IOException, InterruptedException {
+    /**
+     * Running aggregate of the rows of one commune: total residential consumption (MWh) and number of
+     * residential sites, number of rows, and the row chosen by CommuneRecord.follows. Totals can be added
+     * in any order (combiner, reducer, stored years), which gives the same site-weighted average as
+     * reading all the rows at once.
+     */
+    public static class CommuneTotal implements Writable {
+
+        private double consumption;
+        private double sites;
+        private int count;
+        private final CommuneRecord latest = new CommuneRecord();
+
+        public void clear() {
+            consumption = 0;
+            sites = 0;
+            count = 0;
+        }
+
+        /**
+         * Add one row of the dataset.
+         *
+         * @param consumption: total residential consumption of the row, in MWh
+         * @param sites: number of residential sites of the row
+         * @param row: the other values of the row
+         */
+        public void add(float consumption, float sites, CommuneRecord row) {
+            this.consumption += consumption;
+            this.sites += sites;
+            if (count == 0 || row.follows(latest))
+                latest.set(row);
+            count++;
+        }
+
+        public void add(CommuneTotal other) {
+            if (other.count == 0)
+                return;
+            consumption += other.consumption;
+            sites += other.sites;
+            if (count == 0 || other.latest.follows(latest))
+                latest.set(other.latest);
+            count += other.count;
+        }
+
+        /**
+         * @return the number of rows added
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Set *output* to the average consumption per site and the values of the latest row, as written by Reduce1.
+         */
+        public CommuneRecord getAverage(CommuneRecord output) {
+            float avg = (float) (consumption / sites);
+            output.set(latest.getYear(), avg, latest.getHousing(), latest.getHeating(), latest.getPopulation(),
+                    latest.getSurface(), latest.getResidence());
+            return output;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            out.writeDouble(consumption);
+            out.writeDouble(sites);
+            WritableUtils.writeVInt(out, count);
+            latest.write(out);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            consumption = in.readDouble();
+            sites = in.readDouble();
+            count = WritableUtils.readVInt(in);
+            latest.readFields(in);
+        }
+
+        @Override
+        public String toString() {
+            return consumption + ":" + sites + ":" + count + ":" + latest;
+        }
+    }
+
+    /**
+     * Category dimensions of a commune, in the order of the lines written by Reducer2.
+     * A category of a dimension is an index in its label array (see Thresholds.getLabels), which is only
+     * used for the output.
+     */
+    public enum Dimension {
+        HOUSING, SURFACE, RESIDENCE, HEATING, POPULATION
+    }
+
+    private static final Dimension[] DIMENSIONS = Dimension.values();
+
+    /**
+     * Category indexes of one commune, as passed from Mapper2 to Reducer2, one byte per Dimension.
+     */
+    public static class CommuneCategories implements Writable {
+
+        private final byte[] categories = new byte[DIMENSIONS.length];
+
+        public void set(int housing, int surface, int residence, int heating, int population) {
+            categories[Dimension.HOUSING.ordinal()] = (byte) housing;
+            categories[Dimension.SURFACE.ordinal()] = (byte) surface;
+            categories[Dimension.RESIDENCE.ordinal()] = (byte) residence;
+            categories[Dimension.HEATING.ordinal()] = (byte) heating;
+            categories[Dimension.POPULATION.ordinal()] = (byte) population;
+        }
+
+        public int get(Dimension dimension) {
+            return categories[dimension.ordinal()];
+        }
+
+        public int getHousing() {
+            return get(Dimension.HOUSING);
+        }
+
+        public int getSurface() {
+            return get(Dimension.SURFACE);
+        }
+
+        public int getResidence() {
+            return get(Dimension.RESIDENCE);
+        }
+
+        public int getHeating() {
+            return get(Dimension.HEATING);
+        }
+
+        public int getPopulation() {
+            return get(Dimension.POPULATION);
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            out.write(categories);
+        }
 
-            List<Float> values_list = new ArrayList<Float>();
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            in.readFully(categories);
+        }
 
-            for (Text entry : values){
-                Float value = Float.parseFloat(entry.toString());
-                values_list.add(value);
+        @Override
+        public String toString() {
+            return getHousing() + ":" + getSurface() + ":" + getResidence() + ":" + getHeating() + ":" + getPopulation();
+        }
+    }
+
+    /**
+     * Number of communes of one consumption bucket in each combination of the categories of the other
+     * Dimensions, as a dense array in row-major order (HOUSING first, POPULATION last). Any cross table,
+     * marginal or argmax of these dimensions can be derived from it without running the jobs again.
+     */
+    public static class JointCounts implements Writable {
+
+        private final int[] sizes = new int[DIMENSIONS.length];
+        private int[] counts = new int[0];
+
+        /**
+         * Clear the counts, with the number of categories of each dimension of *thresholds*.
+         */
+        public void reset(Thresholds thresholds) {
+            int cells = 1;
+            for (Dimension dimension : DIMENSIONS) {
+                sizes[dimension.ordinal()] = thresholds.getLabels(dimension).length;
+                cells *= sizes[dimension.ordinal()];
             }
+            if (counts.length == cells)
+                Arrays.fill(counts, 0);
+            else
+                counts = new int[cells];
+        }
 
-            Float min = Collections.min(values_list);
-            Float max = Collections.max(values_list);
-            Collections.sort(values_list);
+        public void increment(CommuneCategories categories) {
+            int cell = 0;
+            for (int d = 0; d < sizes.length; d++)
+                cell = cell * sizes[d] + categories.categories[d];
+            counts[cell]++;
+        }
 
-            if (Objects.equals(key.toString(),"population")) {
-                int i33 = values_list.size()/3;
-                Float pop33 = values_list.get(i33);
-                Float pop66 = values_list.get(i33*2);
-                context.write(key, new Text(min+"\t"+max+"\t"+pop33+"\t"+pop66));
-            } else {
-                int i25 = values_list.size()/4;
-                Float val25 = values_list.get(i25);
-                Float val50 = values_list.get(i25*2);
-                Float val75 = values_list.get(i25*2 + i25);
-                context.write(key, new Text(min+"\t"+max+"\t"+val25+"\t"+val50+"\t"+val75));
+        public int getSize(Dimension dimension) {
+            return sizes[dimension.ordinal()];
+        }
+
+        /**
+         * @param categories: one category index per Dimension
+         */
+        public int get(int... categories) {
+            int cell = 0;
+            for (int d = 0; d < sizes.length; d++)
+                cell = cell * sizes[d] + categories[d];
+            return counts[cell];
+        }
+
+        /**
+         * @return the number of communes in each category of *dimension*
+         */
+        public int[] getMarginal(Dimension dimension) {
+            int size = sizes[dimension.ordinal()];
+            int stride = 1;
+            for (int d = dimension.ordinal() + 1; d < sizes.length; d++)
+                stride *= sizes[d];
+            int[] histogram = new int[size];
+            for (int cell = 0; cell < counts.length; cell++)
+                histogram[(cell / stride) % size] += counts[cell];
+            return histogram;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            for (int size : sizes)
+                WritableUtils.writeVInt(out, size);
+            for (int count : counts)
+                WritableUtils.writeVInt(out, count);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            int cells = 1;
+            for (int d = 0; d < sizes.length; d++) {
+                sizes[d] = WritableUtils.readVInt(in);
+                cells *= sizes[d];
             }
+            if (counts.length != cells)
+                counts = new int[cells];
+            for (int cell = 0; cell < cells; cell++)
+                counts[cell] = WritableUtils.readVInt(in);
         }
+
+        /**
+         * e.g. "4x3x3x4x3 0:1:1:3:0=12 0:1:2:3:0=3": the sizes of the dimensions, then the category
+         * indexes and the count of every cell with communes
+         */
+        @Override
+        public String toString() {
+            StringBuilder output = new StringBuilder();
+            for (int d = 0; d < sizes.length; d++)
+                output.append(d > 0 ? "x" : "").append(sizes[d]);
+            for (int cell = 0; cell < counts.length; cell++) {
+                if (counts[cell] == 0)
+                    continue;
+                String[] categories = new String[sizes.length];
+                for (int d = sizes.length - 1, rest = cell; d >= 0; rest /= sizes[d], d--)
+                    categories[d] = Integer.toString(rest % sizes[d]);
+                output.append(" ").append(String.join(":", categories)).append("=").append(counts[cell]);
+            }
+            return output.toString();
+        }
+    }
+
+    /**
+     * Merge the partial sketches of one metric.
+     */
+    public static QuantileSketch mergeSketches(Iterable<QuantileSketch> values, Configuration conf) {
+        QuantileSketch merged = new QuantileSketch(conf.getInt(QuantileSketch.K_PROPERTY, QuantileSketch.DEFAULT_K));
+        for (QuantileSketch sketch : values)
+            merged.merge(sketch);
+        return merged;
     }
-    public static class Mapper1 extends Mapper<LongWritable, Text, Text, Text>{
+
+    /**
+     * Format the min/max line of a metric, as applied by Thresholds.readMinMaxLine: min, max and the bounds
+     * between its enedis.conso.buckets quantile buckets.
+     *
+     * @throws IOException if the sketch is empty, i.e. no commune was averaged
+     */
+    public static String formatMinMax(Configuration conf, String metric, QuantileSketch sketch) throws IOException {
+        if (sketch.getCount() == 0)
+            throw new IOException("No commune to compute the thresholds of " + metric
+                    + ": the input, or its year and filters, select no line of the residential sector");
+        int buckets = getBuckets(conf, Arrays.asList(METRICS).indexOf(metric));
+        StringBuilder line = new StringBuilder();
+        line.append(sketch.getMin()).append("\t").append(sketch.getMax());
+        for (int b = 1; b < buckets; b++)
+            line.append("\t").append(sketch.getBucketBound(b, buckets));
+        return line.toString();
+    }
+
+    public static class Mapper1 extends Mapper<LongWritable, Text, GroupKey, CommuneTotal>{
+
+        private final FieldTokenizer cols = new FieldTokenizer(';');
+        private final GroupKey commune = new GroupKey();
+        private final CommuneRecord row = new CommuneRecord();
+        private final CommuneTotal output_value = new CommuneTotal();
+        private final EnedisJobs.SampledTimer surface_timer = new EnedisJobs.SampledTimer("extractSurfaceWithMaxPercentages");
+        private final EnedisJobs.SampledTimer residence_timer = new EnedisJobs.SampledTimer("extractResidenceWithMaxPercentages");
+        private int grain;
+        private int year_filter;
+        private EnedisZoneMap.Filter filter;
+        private Counter lines;
+        private Counter line_bytes;
+        private Counter no_sites;
+        private Counter other_year;
+        private Counter filtered;
+        private EnedisJobs.Quarantine quarantine;
+
+        @Override
+        protected void setup(Context context) {
+            grain = getGrain(context.getConfiguration());
+            year_filter = context.getConfiguration().getInt(EnedisJobs.YEAR_PROPERTY, -1);
+            filter = EnedisZoneMap.Filter.get(context.getConfiguration());
+            lines = context.getCounter(EnedisJobs.Records.LINES);
+            line_bytes = context.getCounter(EnedisJobs.Records.LINE_BYTES);
+            no_sites = context.getCounter(EnedisJobs.Records.NO_SITES);
+            other_year = context.getCounter(EnedisJobs.Records.OTHER_YEAR);
+            filtered = context.getCounter(EnedisJobs.Records.FILTERED);
+            quarantine = new EnedisJobs.Quarantine(context, COLUMNS);
+        }
 
         /**
          * Get a line from the dataset and write the following to the context:
-         * key = commune_code
-         * value = average_residence_consumption:surface_label:residence_label:electric_heating_rate
+         * key = commune code (or the codes of the configured grain)
+         * value = CommuneTotal of the line: total residential consumption, number of residential sites and
+         *         CommuneRecord(average_residence_consumption, collective_housing_rate, electric_heating_rate,
+         *                       population, surface, residence)
          *
          * @param key: line number
          * @param value: one line from the dataset
@@ -137,201 +573,388 @@ public class EnedisByConsumption {
          */
         public void map(LongWritable key, Text value, Context context)
                 throws IOException, InterruptedException {
-            String[] cols = value.toString().split(";");
-            String commune = cols[2];
-
-            if (Float.parseFloat(cols[10]) == 0.0)
-                return; //pas de sites ENEDIS
-
-            String avg_residence = cols[12];
-            String population = cols[24];
-            String collective_housing_rate = cols[25];
-            String electric_heating_rate = cols[40];
-
-            StringBuilder output_value = new StringBuilder();
-            output_value.append(avg_residence.toString());
-            output_value.append(":");
-            output_value.append(collective_housing_rate);
-            output_value.append(":");
-            output_value.append(extractSurfaceWithMaxPercentages(cols));
-            output_value.append(":");
-            output_value.append(extractResidenceWithMaxPercentages(cols));
-            output_value.append(":");
-            output_value.append(electric_heating_rate);
-            output_value.append(":");
-            output_value.append(population);
-
-            context.write(new Text(commune), new Text(output_value.toString()));
+            cols.reset(value);
+            lines.increment(1);
+            line_bytes.increment(value.getLength());
+
+            try {
+                // same order as EnedisBySector: year, then filter, then the other fields, so that a line
+                // is counted under the same reason by both analyses and a filtered line is never quarantined
+                int year = cols.getInt(0);
+                if (year_filter >= 0 && year != year_filter) {
+                    other_year.increment(1);
+                    return;
+                }
+                if (filter != null && !filter.accept(cols)) {
+                    filtered.increment(1);
+                    return;
+                }
+                float sites = cols.getFloat(10);
+                if (sites == 0.0) {
+                    no_sites.increment(1);
+                    return; //pas de sites ENEDIS
+                }
+
+                float total_residence = cols.getFloat(11);
+                float population = cols.getFloat(24);
+                float collective_housing_rate = cols.getFloat(25);
+                float electric_heating_rate = cols.getFloat(40);
+
+                boolean timed = surface_timer.start();
+                int surface = extractSurfaceWithMaxPercentages(cols);
+                if (timed)
+                    surface_timer.stop();
+                timed = residence_timer.start();
+                int residence = extractResidenceWithMaxPercentages(cols);
+                if (timed)
+                    residence_timer.stop();
+
+                row.set(year, total_residence / sites, collective_housing_rate, electric_heating_rate, population,
+                        surface, residence);
+                output_value.clear();
+                output_value.add(total_residence, sites, row);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                quarantine.reject(cols, value);
+                return;
+            }
+
+            commune.set(grain, cols);
+            context.write(commune, output_value);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            surface_timer.flush(context);
+            residence_timer.flush(context);
+            quarantine.close();
         }
     }
-    public static class Reduce1 extends Reducer<Text,Text,Text,Text> {
+    public static class Reduce1 extends Reducer<GroupKey,CommuneTotal,GroupKey,CommuneRecord> {
+
+        private final CommuneTotal total = new CommuneTotal();
+        private final CommuneRecord output = new CommuneRecord();
+        private final QuantileSketch[] sketches = new QuantileSketch[METRICS.length];
+        private MultipleOutputs<GroupKey,CommuneRecord> outputs;
+
+        /**
+         * Create one quantile sketch per metric. The sketches are filled by reduce() with the averages of
+         * the communes, and written to the sketches output in cleanup(), so that the thresholds are known
+         * without reading the averages again.
+         */
+        @Override
+        protected void setup(Context context) {
+            int k = context.getConfiguration().getInt(QuantileSketch.K_PROPERTY, QuantileSketch.DEFAULT_K);
+            for (int m = 0; m < METRICS.length; m++)
+                sketches[m] = new QuantileSketch(k);
+            outputs = new MultipleOutputs<GroupKey,CommuneRecord>(context);
+        }
 
         /**
-         * Calculate the average yearly consumption for the residence sector for the comune given by *key*.
-         * Set global variables to find min and max consumption and electric heating rate.
+         * Calculate the average yearly consumption per site for the residence sector for the comune given by *key*:
+         * its total consumption divided by its number of sites, both summed in double precision, so that the result
+         * does not depend on the order of the values. The values may already be combined by TotalCombiner, or be
+         * the stored totals of several years.
          *
          * Write the following to the context:
-         * key = average_energy_consumption
-         * value = surface_label:residence_label:electric_heating_rate
+         * key = commune code
+         * value = CommuneRecord with the average consumption and the values of the most recent row
          *
          * @param key: commune code
-         * @param values: list of values mapped by Mapper1
+         * @param values: totals mapped by Mapper1
          * @param context
          * @throws IOException
          * @throws InterruptedException
          */
-        public void reduce(Text key, Iterable<Text> values,
+        public void reduce(GroupKey key, Iterable<CommuneTotal> values,
                            Context context
         ) throws IOException, InterruptedException {
-            List<Float> list_consumption = new ArrayList<Float>();
-            String surface = new String();
-            String residence = new String();
-            String heating_string = new String();
-            String housing_string = new String();
-            String population_string = new String();
-
-            for (Text v : values) {
-                String[] content = v.toString().split(":");
-                Float consumption = Float.parseFloat(content[0]);
-                list_consumption.add(consumption);
-
-                housing_string = content[1];
-                surface = content[2];
-                residence = content[3];
-                heating_string = content[4];
-                population_string = content[5];
-            }
+            total.clear();
+            for (CommuneTotal v : values)
+                total.add(v);
+
+            total.getAverage(output);
+            sketches[CONSO].update(output.getConsumption());
+            sketches[HOUSING].update(output.getHousing());
+            sketches[HEATING].update(output.getHeating());
+            sketches[POPULATION].update(output.getPopulation());
+            context.write(key, output);
+        }
 
-            Float heating = Float.parseFloat(heating_string);
-            Float housing = Float.parseFloat(housing_string);
-            Float population = Float.parseFloat(population_string);
-            Float avg = new Float(0);
-            for(Float entry : list_consumption) {
-                avg += entry;
-            }
-            avg= avg/list_consumption.size();
+        /**
+         * @return the sketches of the averages reduced so far, in the order of METRICS
+         */
+        public QuantileSketch[] getSketches() {
+            return sketches;
+        }
 
-            StringBuilder output = new StringBuilder();
-            output.append(housing);
-            output.append(":");
-            output.append(surface);
-            output.append(":");
-            output.append(residence);
-            output.append(":");
-            output.append(heating_string);
-            output.append(":");
-            output.append(population_string);
-
-            context.write(new Text(avg.toString()), new Text(output.toString()));
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            for (int m = 0; m < METRICS.length; m++)
+                outputs.write(SKETCHES_OUTPUT, new Text(METRICS[m]), sketches[m], SKETCHES_OUTPUT + "/part");
+            outputs.close();
         }
     }
-    public static class Mapper2 extends Mapper<LongWritable, Text, Text, Text>{
 
-        public void map(LongWritable key, Text value, Context context)
+    /**
+     * Add the totals of a commune. Used as combiner of Reduce1, and as the reducer of the incremental
+     * mode, which stores the total of each commune for one year so that it can be merged with the other years.
+     */
+    public static class TotalCombiner extends Reducer<GroupKey,CommuneTotal,GroupKey,CommuneTotal> {
+
+        private final CommuneTotal total = new CommuneTotal();
+
+        public void reduce(GroupKey key, Iterable<CommuneTotal> values,
+                           Context context
+        ) throws IOException, InterruptedException {
+            total.clear();
+            for (CommuneTotal v : values)
+                total.add(v);
+
+            context.write(key, total);
+        }
+    }
+    public static class Mapper2 extends Mapper<GroupKey, CommuneRecord, ByteWritable, CommuneCategories>{
+
+        private final ByteWritable conso_category = new ByteWritable();
+        private final CommuneCategories output = new CommuneCategories();
+        private Thresholds thresholds;
+
+        /**
+         * Load the thresholds computed by the min/max job from the job configuration, once per task.
+         * Neither the driver JVM nor the other tasks of the local runner share them.
+         */
+        @Override
+        protected void setup(Context context) throws IOException {
+            thresholds = Thresholds.read(context.getConfiguration());
+        }
+
+        public void map(GroupKey commune, CommuneRecord value, Context context)
                 throws IOException, InterruptedException {
-            Float conso = Float.parseFloat(value.toString().split("\t")[0]);
-            String[] values = value.toString().split("\t")[1].split(":");
+            conso_category.set((byte) thresholds.categoriseByConsoRange(value.getConsumption()));
 
-            String conso_category = categoriseByConsoRange(conso);
-            String housing_category = categoriseByCollectiveHousingRange(Float.parseFloat(values[0]));
-            String heating_category = categoriseByHeatingRange(Float.parseFloat(values[3]));
-            String population_category = categoriseByPopulationRange(Float.parseFloat(values[4]));
+            int housing_category = thresholds.categoriseByCollectiveHousingRange(value.getHousing());
+            int heating_category = thresholds.categoriseByHeatingRange(value.getHeating());
+            int population_category = thresholds.categoriseByPopulationRange(value.getPopulation());
 
-            StringBuilder output = new StringBuilder();
-            output.append(housing_category);
-            output.append(":");
-            output.append(values[1]);
-            output.append(":");
-            output.append(values[2]);
-            output.append(":");
-            output.append(heating_category);
-            output.append(":");
-            output.append(population_category);
+            output.set(housing_category, value.getSurface(), value.getResidence(),
+                    heating_category, population_category);
 
-            context.write(new Text(conso_category),new Text(output.toString()));
+            context.write(conso_category, output);
         }
 
     }
-    public static class Reducer2 extends Reducer<Text,Text,Text,Text> {
+    public static class Reducer2 extends Reducer<ByteWritable,CommuneCategories,Text,Text> {
+
+        private final JointCounts table = new JointCounts();
+        private final Map<Text,Text> lines = new TreeMap<Text,Text>();
+        private Thresholds thresholds;
+        private MultipleOutputs<Text,Text> outputs;
+
+        /**
+         * The category labels depend on the thresholds, load them as in Mapper2.
+         */
+        @Override
+        protected void setup(Context context) throws IOException {
+            thresholds = Thresholds.read(context.getConfiguration());
+            outputs = new MultipleOutputs<Text,Text>(context);
+        }
 
-        public void reduce(Text key, Iterable<Text> values,
+        /**
+         * Count the communes of the consumption bucket *key* in a JointCounts table, write it to the crosstab
+         * output and keep the line of the most frequent category of each dimension for cleanup().
+         */
+        public void reduce(ByteWritable key, Iterable<CommuneCategories> values,
                            Context context
         ) throws IOException, InterruptedException {
+            table.reset(thresholds);
+            for (CommuneCategories categories : values)
+                table.increment(categories);
 
-            Map<String,Integer> surface_map = new HashMap<String, Integer>();
-            Map<String,Integer> residence_map = new HashMap<String, Integer>();
-            Map<String,Integer> heating_map = new HashMap<String, Integer>();
-            Map<String,Integer> housing_map = new HashMap<String, Integer>();
-            Map<String,Integer> population_map = new HashMap<String, Integer>();
-            int i;
-            for(i=0; i<SURFACELABELS.length; i++)
-                surface_map.put(SURFACELABELS[i],0);
-
-            for(i=0; i<RESIDENCYLABELS.length; i++)
-                residence_map.put(RESIDENCYLABELS[i],0);
-
-            for(i=0; i< HEATINGLABELS.length; i++)
-                heating_map.put(HEATINGLABELS[i],0);
-
-            for(i=0; i< COLLECTIVEHOUSINGLABELS.length; i++)
-                housing_map.put(COLLECTIVEHOUSINGLABELS[i],0);
-
-            for(i=0; i< POPULATIONLABELS.length; i++)
-                population_map.put(POPULATIONLABELS[i],0);
-
-            for (Text entry : values){
-                String[] value = entry.toString().split(":");
-                housing_map.put(value[0],housing_map.get(value[0]) + 1);
-                surface_map.put(value[1],surface_map.get(value[1]) + 1);
-                residence_map.put(value[2],residence_map.get(value[2]) + 1);
-                heating_map.put(value[3],heating_map.get(value[3]) + 1);
-                population_map.put(value[4],population_map.get(value[4]) + 1);
-            }
+            outputs.write(CROSSTAB_OUTPUT, key, table, CROSSTAB_OUTPUT + "/part");
+            lines.put(new Text(thresholds.getConsoLabels()[key.get()]), new Text(summariseCategories(table, thresholds)));
+            context.getCounter(EnedisJobs.Records.REPORT_LINES).increment(1);
+        }
 
-            String max_surface_categ = getMaxCategory(surface_map);
-            String max_residence_categ = getMaxCategory(residence_map);
-            String max_heating_categ = getMaxCategory(heating_map);
-            String max_housing_categ = getMaxCategory(housing_map);
-            String max_population_categ = getMaxCategory(population_map);
-
-            context.write(key, new Text(
-                    "\n\t"
-                            + max_housing_categ + "\n\t"
-                            + max_surface_categ + "\n\t"
-                            + max_residence_categ + "\n\t"
-                            + max_heating_categ + "\n\t"
-                            + max_population_categ)
-            );
+        /**
+         * Write the lines in the order of their labels rather than of the buckets, like a report keyed by label.
+         */
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            for (Map.Entry<Text,Text> line : lines.entrySet())
+                context.write(line.getKey(), line.getValue());
+            outputs.close();
         }
     }
 
-    public static void readMinMax(String output) {
-        try {
-            File file = new File(output+"-minmax/part-r-00000");
-            Scanner input = new Scanner(file);
-
-            while (input.hasNextLine()) {
-                String[] tokens = input.nextLine().split("\t");
-                if (Objects.equals(tokens[0],"housing")) {
-                    global_25_housing = Float.parseFloat(tokens[3]);
-                    global_50_housing = Float.parseFloat(tokens[4]);
-                    global_75_housing = Float.parseFloat(tokens[5]);
-                } else if (Objects.equals(tokens[0],"conso")) {
-                    global_25_conso = Float.parseFloat(tokens[3]);
-                    global_50_conso = Float.parseFloat(tokens[4]);
-                    global_75_conso = Float.parseFloat(tokens[5]);
-                } else if (Objects.equals(tokens[0],"heating")) {
-                    global_25_heating = Float.parseFloat(tokens[3]);
-                    global_50_heating = Float.parseFloat(tokens[4]);
-                    global_75_heating = Float.parseFloat(tokens[5]);
-                } else {
-                    global_33_population = Float.parseFloat(tokens[3]);
-                    global_66_population = Float.parseFloat(tokens[4]);
+    /**
+     * Per category, return the labels of the intervals with the most communes, as written by Reducer2.
+     *
+     * @param table: joint counts of the categories of the communes of one consumption interval
+     * @param thresholds: thresholds giving the labels of the categories
+     * @return one label per category, each on its own indented line
+     */
+    public static String summariseCategories(JointCounts table, Thresholds thresholds) {
+        StringBuilder output = new StringBuilder();
+        for (Dimension dimension : DIMENSIONS) {
+            output.append("\n\t");
+            output.append(thresholds.getLabels(dimension)[getMaxCategory(table.getMarginal(dimension))]);
+        }
+        return output.toString();
+    }
+
+    /**
+     * Merge the sketches written by Reduce1 in the sketches directory of the first job output, and
+     * write the min/max line of each metric to the min/max output, in the order of the metric names.
+     *
+     * @param conf: configuration of the driver
+     * @param output: output directory of the first job
+     * @return the thresholds read from these lines
+     * @throws IOException if the sketches cannot be read, or if a metric has no commune
+     */
+    public static Thresholds mergeMinMax(Configuration conf, String output) throws IOException {
+        Map<String,List<QuantileSketch>> partials = new TreeMap<String,List<QuantileSketch>>();
+        for (Path part : EnedisJobs.listParts(conf, new Path(output, SKETCHES_OUTPUT))) {
+            SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(part));
+            try {
+                Text metric = new Text();
+                QuantileSketch sketch = new QuantileSketch();
+                while (reader.next(metric, sketch)) {
+                    List<QuantileSketch> sketches = partials.get(metric.toString());
+                    if (sketches == null) {
+                        sketches = new ArrayList<QuantileSketch>();
+                        partials.put(metric.toString(), sketches);
+                    }
+                    sketches.add(sketch);
+                    sketch = new QuantileSketch();
                 }
+            } finally {
+                reader.close();
+            }
+        }
+
+        // every metric needs its thresholds, in the order of the metric names
+        List<String> lines = new ArrayList<String>();
+        for (String metric : new TreeSet<String>(Arrays.asList(METRICS))) {
+            List<QuantileSketch> sketches = partials.get(metric);
+            QuantileSketch sketch = mergeSketches(sketches != null ? sketches : new ArrayList<QuantileSketch>(), conf);
+            lines.add(metric + "\t" + formatMinMax(conf, metric, sketch));
+        }
+        EnedisJobs.writeLines(conf, new Path(output+"-minmax"), lines);
+        Thresholds thresholds = new Thresholds();
+        for (String line : lines)
+            thresholds.readMinMaxLine(line);
+        return thresholds;
+    }
+
+    /**
+     * Bounds of the quantile buckets of the metrics and labels of the categories of one run. The driver
+     * and EnedisLocal set them from the min/max lines, and each task of the last job reads its own copy
+     * from the job configuration in setup(), so that the tasks of a JVM share no mutable state.
+     */
+    public static class Thresholds {
+
+        private final float[][] bounds = new float[METRICS.length][];
+        private final String[][] labels = new String[METRICS.length][];
+
+        /**
+         * Set the bounds and labels of a metric from one line of the min/max output.
+         */
+        public void readMinMaxLine(String line) {
+            String[] tokens = line.split("\t");
+            float[] metric_bounds = new float[tokens.length - 3];
+            for (int b = 0; b < metric_bounds.length; b++)
+                metric_bounds[b] = Float.parseFloat(tokens[b + 3]);
+            set(Arrays.asList(METRICS).indexOf(tokens[0]), metric_bounds);
+        }
+
+        private void set(int metric, float[] metric_bounds) {
+            bounds[metric] = metric_bounds;
+            labels[metric] = bucketLabels(metric, metric_bounds);
+        }
+
+        /**
+         * Publish the thresholds in the job configuration, so that they reach the map and reduce
+         * tasks of the last job wherever they run.
+         *
+         * @param conf: configuration used to create the last job
+         */
+        public void write(Configuration conf) {
+            for (int m = 0; m < METRICS.length; m++) {
+                String[] values = new String[bounds[m].length];
+                for (int b = 0; b < values.length; b++)
+                    values[b] = Float.toString(bounds[m][b]);
+                conf.setStrings(THRESHOLDS_PREFIX + METRICS[m], values);
+            }
+        }
+
+        /**
+         * Load the thresholds published by write() and build the matching category labels.
+         *
+         * @param conf: configuration of the running task
+         * @throws IOException if the thresholds are missing
+         */
+        public static Thresholds read(Configuration conf) throws IOException {
+            Thresholds thresholds = new Thresholds();
+            for (int m = 0; m < METRICS.length; m++) {
+                String[] values = conf.getStrings(THRESHOLDS_PREFIX + METRICS[m]);
+                if (values == null)
+                    throw new IOException("Missing thresholds for " + METRICS[m] + " (" + THRESHOLDS_PREFIX + METRICS[m] + ")");
+                float[] metric_bounds = new float[values.length];
+                for (int b = 0; b < values.length; b++)
+                    metric_bounds[b] = Float.parseFloat(values[b]);
+                thresholds.set(m, metric_bounds);
+            }
+            return thresholds;
+        }
+
+        /**
+         * Determine to which quantile bucket of the communes of the dataset the input consumption belongs.
+         *
+         * @param conso: average yearly consumption for the residency sector of a commune
+         * @return the index of the interval in getConsoLabels()
+         */
+        public int categoriseByConsoRange(float conso) {
+            return categorise(bounds[CONSO], conso);
+        }
+
+        /**
+         * Determine to which quantile bucket of the communes of the dataset the electric heating rate belongs.
+         *
+         * @param heating: rate of apartments using electrical heating
+         * @return the index of the interval in getLabels(Dimension.HEATING)
+         */
+        public int categoriseByHeatingRange(float heating) {
+            return categorise(bounds[HEATING], heating);
+        }
+
+        public int categoriseByCollectiveHousingRange(float housing) {
+            return categorise(bounds[HOUSING], housing);
+        }
+
+        public int categoriseByPopulationRange(float population) {
+            return categorise(bounds[POPULATION], population);
+        }
+
+        public String[] getConsoLabels() {
+            return labels[CONSO];
+        }
+
+        /**
+         * @return the labels of the categories of *dimension*
+         */
+        public String[] getLabels(Dimension dimension) {
+            switch (dimension) {
+                case HOUSING:
+                    return labels[HOUSING];
+                case SURFACE:
+                    return SURFACELABELS;
+                case RESIDENCE:
+                    return RESIDENCYLABELS;
+                case HEATING:
+                    return labels[HEATING];
+                default:
+                    return labels[POPULATION];
             }
-            input.close();
-        } catch (Exception ex) {
-            ex.printStackTrace();
         }
     }
 
@@ -339,49 +962,57 @@ public class EnedisByConsumption {
      * Calculate the sum of the values for "Superficie des logements 80 à 100 m2" and
      * "Superficie des logements > 100 m2".
      *
-     * @param cols: one line from the dataset, split into a list of Strings
+     * @param cols: one line from the dataset, split by a FieldTokenizer
      * @return percentage of apartments with a surface > 80 m2
      */
-    public static Float extractLargeSurfacePercentage(String[] cols) {
-        return Float.parseFloat(cols[31]) + Float.parseFloat(cols[32]);
+    public static float extractLargeSurfacePercentage(FieldTokenizer cols) {
+        return cols.getFloat(31) + cols.getFloat(32);
     }
 
     /**
      * Calculate the sum of the values for "Résidences principales avant 1919" and
      * "Résidences principales de 1919 à 1945".
      *
-     * @param cols: one line from the dataset, split into a list of Strings
+     * @param cols: one line from the dataset, split by a FieldTokenizer
      * @return percentage of residencies build before 1945
      */
-    public static Float extractOldResidencePercentage(String[] cols) {
-        return Float.parseFloat(cols[33]) + Float.parseFloat(cols[34]);
+    public static float extractOldResidencePercentage(FieldTokenizer cols) {
+        return cols.getFloat(33) + cols.getFloat(34);
     }
 
     /**
      * Calculate the percentage of apartments with < 30 m2 , between 30 and 100 m2, and over 100 m2.
      * Return the label for the interval with the largest percentage.
      *
-     * @param cols: one line from the dataset, split into a list of Strings
-     * @return label of the surface size with max percentage
+     * @param cols: one line from the dataset, split by a FieldTokenizer
+     * @return index in SURFACELABELS of the surface size with max percentage
      */
-    public static String extractSurfaceWithMaxPercentages(String[] cols) {
-        Float small_surface_percentage = Float.parseFloat(cols[27]);
+    public static int extractSurfaceWithMaxPercentages(FieldTokenizer cols) {
+        float small_surface_percentage = cols.getFloat(27);
 
-        Float medium_surface_percentage = Float.parseFloat(cols[28])+
-                Float.parseFloat(cols[29]) +
-                Float.parseFloat(cols[30]) +
-                Float.parseFloat(cols[31]);
+        float medium_surface_percentage = cols.getFloat(28)+
+                cols.getFloat(29) +
+                cols.getFloat(30) +
+                cols.getFloat(31);
 
-        Float large_surface_percentage = Float.parseFloat(cols[32]);
+        float large_surface_percentage = cols.getFloat(32);
+
+        return maxSurfaceCategory(small_surface_percentage, medium_surface_percentage, large_surface_percentage);
+    }
 
-        Float max = Math.max(small_surface_percentage, Math.max(medium_surface_percentage,large_surface_percentage));
+    /**
+     * @return index in SURFACELABELS of the largest of the three percentages
+     */
+    public static int maxSurfaceCategory(float small_surface_percentage, float medium_surface_percentage,
+                                         float large_surface_percentage) {
+        float max = Math.max(small_surface_percentage, Math.max(medium_surface_percentage,large_surface_percentage));
 
         if (Math.abs(max - small_surface_percentage) < EPSILON) {
-            return SURFACELABELS[0];
+            return 0;
         } else if (Math.abs(max - medium_surface_percentage) < EPSILON) {
-            return SURFACELABELS[1];
+            return 1;
         } else {
-            return SURFACELABELS[2];
+            return 2;
         }
     }
 
@@ -389,197 +1020,240 @@ public class EnedisByConsumption {
      * Calculate the percentage of apartments built before 1970 , between 1971 and 2010, and after 2011.
      * Return the label for the interval with the largest percentage.
      *
-     * @param cols: one line from the dataset, split into a list of Strings
-     * @return label of the interval with max percentage
+     * @param cols: one line from the dataset, split by a FieldTokenizer
+     * @return index in RESIDENCYLABELS of the interval with max percentage
      */
-    public static String extractResidenceWithMaxPercentages(String[] cols) {
-        Float old_residence_percentage = Float.parseFloat(cols[33]) + Float.parseFloat(cols[34]) + Float.parseFloat(cols[35]);
+    public static int extractResidenceWithMaxPercentages(FieldTokenizer cols) {
+        float old_residence_percentage = cols.getFloat(33) + cols.getFloat(34) + cols.getFloat(35);
 
-        Float medium_residence_percentage =  Float.parseFloat(cols[36]) + Float.parseFloat(cols[37]) + Float.parseFloat(cols[38]);
+        float medium_residence_percentage =  cols.getFloat(36) + cols.getFloat(37) + cols.getFloat(38);
 
-        Float new_residence_percentage =  Float.parseFloat(cols[39]);
+        float new_residence_percentage =  cols.getFloat(39);
 
-        Float max = Math.max(old_residence_percentage, Math.max(medium_residence_percentage,new_residence_percentage));
+        return maxResidenceCategory(old_residence_percentage, medium_residence_percentage, new_residence_percentage);
+    }
+
+    /**
+     * @return index in RESIDENCYLABELS of the largest of the three percentages
+     */
+    public static int maxResidenceCategory(float old_residence_percentage, float medium_residence_percentage,
+                                           float new_residence_percentage) {
+        float max = Math.max(old_residence_percentage, Math.max(medium_residence_percentage,new_residence_percentage));
 
         if (Math.abs(max - old_residence_percentage) < EPSILON) {
-            return RESIDENCYLABELS[0];
+            return 0;
         } else if (Math.abs(max - medium_residence_percentage) < EPSILON) {
-            return RESIDENCYLABELS[1];
+            return 1;
         } else {
-            return RESIDENCYLABELS[2];
+            return 2;
         }
     }
 
     /**
-     * Split the interval between the min consumption and max consumption of the dataset into 4 parts.
-     * Determine to which interval the input consumption belongs, and return its label.
-     *
-     * @param conso: average yearly consumption for the residency sector of a commune
-     * @return the label of the interval
+     * @param bounds: increasing bounds between the buckets
+     * @return the index of the bucket of *value*, i.e. the number of bounds lower than or equal to it
+     *         (the last bucket for NaN)
      */
-    public static String categoriseByConsoRange(Float conso) {
-        if (conso < global_25_conso)
-            return CONSOLABELS[0];
-        else if (conso < global_50_conso)
-            return CONSOLABELS[1];
-        else if (conso < global_75_conso)
-            return CONSOLABELS[2];
-        else
-            return CONSOLABELS[3];
+    public static int categorise(float[] bounds, float value) {
+        int low = 0;
+        int high = bounds.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (value < bounds[middle])
+                high = middle;
+            else
+                low = middle + 1;
+        }
+        return low;
     }
 
     /**
-     * Split the interval between the min and max electricat heating rate of the dataset into 4 parts.
-     * Determine to which interval the input consumption belongs, and return its label.
-     *
-     * @param heating: rate of apartments using electrical heating
-     * @return the label of the interval
+     * e.g. "Conso basse(>=1.56,<1.99MWh)", or "Conso 2/10(>=1.3,<1.45MWh)" with another number of buckets
+     * than the default one.
      */
-    public static String categoriseByHeatingRange(Float heating) {
-
-        if (heating < global_25_heating) {
-            return HEATINGLABELS[0];
-        } else if (heating < global_50_heating) {
-            return HEATINGLABELS[1];
-        } else if (heating < global_75_heating) {
-            return HEATINGLABELS[2];
-        } else {
-            return HEATINGLABELS[3];
-        }
-    }
-
-    public static String categoriseByCollectiveHousingRange(Float housing) {
-        if (housing < global_25_housing) {
-            return COLLECTIVEHOUSINGLABELS[0];
-        } else if (housing < global_50_housing) {
-            return COLLECTIVEHOUSINGLABELS[1];
-        } else if (housing < global_75_housing) {
-            return COLLECTIVEHOUSINGLABELS[2];
-        } else {
-            return COLLECTIVEHOUSINGLABELS[3];
-        }
-    }
-
-    public static String categoriseByPopulationRange(Float population) {
-        if (population < global_33_population) {
-            return POPULATIONLABELS[0];
-        } else if (population < global_66_population) {
-            return POPULATIONLABELS[1];
-        } else {
-            return POPULATIONLABELS[2];
-        }
-    }
-
-    public static void update_category_labels() {
+    private static String[] bucketLabels(int metric, float[] bounds) {
         DecimalFormat df = new DecimalFormat("##.##");
         df.setRoundingMode(RoundingMode.DOWN);
 
-        CONSOLABELS[0] = CONSOLABELS[0]+"(<"+df.format(global_25_conso)+"MWh)";
-        CONSOLABELS[1] = CONSOLABELS[1]+"(>="+df.format(global_25_conso)
-                                        +",<"+df.format(global_50_conso)+"MWh)";
-        CONSOLABELS[2] = CONSOLABELS[2]+"(>="+df.format(global_50_conso)
-                                        +",<"+df.format(global_75_conso)+"MWh)";
-        CONSOLABELS[3] = CONSOLABELS[3]+"(>="+df.format(global_75_conso)+"MWh)";
-
-        COLLECTIVEHOUSINGLABELS[0] = "Taux logements coll. très bas(<" + df.format(global_25_housing) + "%)";
-        COLLECTIVEHOUSINGLABELS[1] = "Taux logements coll. bas(>=" +  df.format(global_25_housing)
-                                    + ",<" + df.format(global_50_housing) + "%)";
-        COLLECTIVEHOUSINGLABELS[2] = "Taux logements coll. moyen(>=" + df.format(global_50_housing)
-                                    + ",<" + df.format(global_75_housing) + "%)";
-        COLLECTIVEHOUSINGLABELS[3] = "Taux logements coll. élevé(>=" + df.format(global_75_housing) + "%)";
-
-        HEATINGLABELS[0] = "Taux chauff. électr. très bas(<" + df.format(global_25_heating) + "%)";
-        HEATINGLABELS[1] = "Taux chauff. électr. bas(>=" + df.format(global_25_heating)
-                                + ",<" + df.format(global_50_heating) + "%)";
-        HEATINGLABELS[2] = "Taux chauff. électr. moyen(>=" + df.format(global_50_heating)
-                                 + ",<" +df.format(global_75_heating)+"%)";
-        HEATINGLABELS[3] = "Taux chauff. électr. élevé(>="+df.format(global_75_heating)+"%)";
-
-        POPULATIONLABELS[0] = "Nb habitants bas(<" + df.format(global_33_population) + ")";
-        POPULATIONLABELS[1] = "Nb habitants moyen(>="+df.format(global_33_population)+
-                                                ",<" + df.format(global_66_population) + ")";
-        POPULATIONLABELS[2] = "Nb habitants élevé(>=" + df.format(global_66_population) + ")";
+        int buckets = bounds.length + 1;
+        String[] labels = new String[buckets];
+        for (int b = 0; b < buckets; b++) {
+            String name = buckets == BUCKET_NAMES[metric].length ? BUCKET_NAMES[metric][b] : (b + 1) + "/" + buckets;
+            String range;
+            if (b == 0)
+                range = "<" + df.format(bounds[0]);
+            else if (b == buckets - 1)
+                range = ">=" + df.format(bounds[b - 1]);
+            else
+                range = ">=" + df.format(bounds[b - 1]) + ",<" + df.format(bounds[b]);
+            labels[b] = LABEL_PREFIXES[metric] + " " + name + "(" + range + UNITS[metric] + ")";
+        }
+        return labels;
     }
 
-    public static String getMaxCategory(Map<String, Integer> map){
-        Map.Entry<String, Integer> maxEntry = null;
-        Integer max = Collections.max(map.values());
-
-        for(Map.Entry<String, Integer> entry : map.entrySet()) {
-            Integer value = entry.getValue();
-            if(null != value && max == value) {
-                maxEntry = entry;
-            }
+    /**
+     * Return the index of the biggest count of a histogram, the first one in case of a tie.
+     */
+    public static int getMaxCategory(int[] histogram) {
+        int max_category = 0;
+        for (int i = 1; i < histogram.length; i++) {
+            if (histogram[i] > histogram[max_category])
+                max_category = i;
         }
-        return maxEntry.getKey();
+        return max_category;
     }
 
 
     public static void main(String[] args) throws Exception {
 
-        if (args.length < 2) {
-            System.err.println("Usage : hadoop jar EnedisByConsumption.jar EnedisByConsumption input output");
-            System.exit(0);
-        }
-
         Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        run(conf, args);
+    }
 
-        Job job0 = new Job(conf, "FirstRun");
-        job0.setJarByClass(EnedisByConsumption.class);
-        job0.setOutputKeyClass(Text.class);
-        job0.setOutputValueClass(Text.class);
-        job0.setMapperClass(Mapper1.class);
-        job0.setReducerClass(Reduce1.class);
-        job0.setInputFormatClass(TextInputFormat.class);
-        job0.setOutputFormatClass(TextOutputFormat.class);
-
-        FileInputFormat.addInputPath(job0, new Path(args[0]));
-        FileOutputFormat.setOutputPath(job0, new Path(args[1]));
-
-        job0.waitForCompletion(true);
-
-        System.out.println("----------------------------------------------");
-        System.out.println("END OF FIRST JOB");
-        System.out.println("----------------------------------------------");
-
-        Job job1 = new Job(conf, "MinMaxRun");
-        job1.setJarByClass(EnedisByConsumption.class);
-        job1.setOutputKeyClass(Text.class);
-        job1.setOutputValueClass(Text.class);
-        job1.setMapperClass(ValuesMapper.class);
-        job1.setReducerClass(MinMaxReducer.class);
-        job1.setInputFormatClass(TextInputFormat.class);
-        job1.setOutputFormatClass(TextOutputFormat.class);
-
-        FileInputFormat.addInputPath(job1, new Path(args[1]+"/part-r-00000"));
-        FileOutputFormat.setOutputPath(job1, new Path(args[1]+"-minmax"));
-
-        job1.waitForCompletion(true);
-
-        System.out.println("----------------------------------------------");
-        System.out.println("END OF MIN MAX JOB");
-        System.out.println("----------------------------------------------");
-
-        readMinMax(args[1]);
-        update_category_labels();
-
-        Job job2 = new Job(conf, "SecondRun");
-        job2.setJarByClass(EnedisByConsumption.class);
-        job2.setOutputKeyClass(Text.class);
-        job2.setOutputValueClass(Text.class);
-        job2.setMapperClass(Mapper2.class);
-        job2.setReducerClass(Reducer2.class);
-        job2.setInputFormatClass(TextInputFormat.class);
-        job2.setOutputFormatClass(TextOutputFormat.class);
-
-        String inFile = new String(args[1]+"/part-r-00000");
-        FileInputFormat.addInputPath(job2, new Path(inFile));
+    /**
+     * Run the analysis with the arguments of main, once the generic options are parsed into *conf*.
+     * Stop at the first job which fails, since the next ones read its output.
+     *
+     * @throws IOException if a job fails
+     */
+    public static void run(Configuration conf, String[] args) throws Exception {
+        List<String> paths = new ArrayList<String>();
+        boolean columnar = false;
+        String state = null;
+        String years = null;
+        int year = -1;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--columnar"))
+                columnar = true;
+            else if (arg.equals("--state") && i + 1 < args.length)
+                state = args[++i];
+            else if (arg.equals("--year") && i + 1 < args.length)
+                year = Integer.parseInt(args[++i]);
+            else if (arg.equals("--years") && i + 1 < args.length)
+                years = args[++i];
+            else if (arg.equals("--map-codec") && i + 1 < args.length)
+                conf.set(EnedisJobs.MAP_CODEC_PROPERTY, args[++i]);
+            else if (arg.equals("--output-codec") && i + 1 < args.length)
+                conf.set(EnedisJobs.OUTPUT_CODEC_PROPERTY, args[++i]);
+            else if (arg.equals("--threads") && i + 1 < args.length)
+                EnedisJobs.setLocalThreads(conf, Integer.parseInt(args[++i]), THREAD_STAGES);
+            else if (arg.equals("--filter-years") && i + 1 < args.length)
+                conf.set(EnedisZoneMap.YEARS_PROPERTY, args[++i]);
+            else if (arg.equals("--filter-departments") && i + 1 < args.length)
+                conf.set(EnedisZoneMap.DEPARTMENTS_PROPERTY, args[++i]);
+            else
+                paths.add(arg);
+        }
 
-        String outfinal = new String(args[1]+"-final");
-        FileOutputFormat.setOutputPath(job2, new Path(outfinal));
+        // with --state and without --year, the report is rebuilt from the stored years only
+        // the filters only apply to full runs, the partial aggregates of a year must hold all its lines
+        boolean with_input = state == null || year >= 0;
+        boolean filtered = EnedisZoneMap.Filter.get(conf) != null;
+        if (paths.size() < (with_input ? 2 : 1) || (year >= 0 && state == null) || (filtered && state != null)) {
+            System.err.println("Usage : hadoop jar EnedisByConsumption.jar EnedisByConsumption [-D enedis.quantile.k=200] [--columnar] [--map-codec C] [--output-codec C] [--threads N] [--filter-years Y1,Y2] [--filter-departments D1,D2] input output");
+            System.err.println("        hadoop jar EnedisByConsumption.jar EnedisByConsumption [-D enedis.quantile.k=200] [--columnar] [--map-codec C] [--output-codec C] [--threads N] --state dir [--year Y input] [--years Y1,Y2] output");
+            System.exit(0);
+        }
+        String input = with_input ? paths.get(0) : null;
+        String output = paths.get(paths.size() - 1);
+        checkBuckets(conf);
 
-        job2.waitForCompletion(true);
+        RunReport report = new RunReport("EnedisByConsumption");
+        // the report is written whatever the outcome, with the failed job marked as such
+        try {
+            if (state != null && year >= 0)
+                runYear(conf, input, columnar, new Path(state), year, report);
+
+            Job job0;
+            if (state == null) {
+                job0 = new Job(conf, "FirstRun");
+                job0.setMapperClass(Mapper1.class);
+                EnedisJobs.setRawInput(job0, new Path(input), columnar, getColumns(conf));
+            } else {
+                job0 = new Job(conf, "MergeRun");
+                job0.setMapperClass(Mapper.class);
+                job0.setInputFormatClass(SequenceFileInputFormat.class);
+                EnedisJobs.addStateInput(job0, new Path(state), STATE_NAME, years);
+            }
+            job0.setJarByClass(EnedisByConsumption.class);
+            job0.setMapOutputValueClass(CommuneTotal.class);
+            job0.setCombinerClass(TotalCombiner.class);
+            job0.setReducerClass(Reduce1.class);
+            job0.setOutputKeyClass(GroupKey.class);
+            job0.setOutputValueClass(CommuneRecord.class);
+            job0.setOutputFormatClass(SequenceFileOutputFormat.class);
+            MultipleOutputs.addNamedOutput(job0, SKETCHES_OUTPUT, SequenceFileOutputFormat.class,
+                    Text.class, QuantileSketch.class);
+            EnedisJobs.setNumReduceTasks(job0);
+            EnedisJobs.setCompression(job0);
+
+            FileOutputFormat.setOutputPath(job0, new Path(output));
+            EnedisJobs.setRangePartitioner(job0, state == null ? new int[] {getGrain(conf)} : null);
+
+            report.complete(job0);
+
+            System.out.println("----------------------------------------------");
+            System.out.println("END OF FIRST JOB");
+            System.out.println("----------------------------------------------");
+
+            mergeMinMax(conf, output).write(conf);
+
+            Job job1 = new Job(conf, "SecondRun");
+            job1.setJarByClass(EnedisByConsumption.class);
+            job1.setMapOutputKeyClass(ByteWritable.class);
+            job1.setMapOutputValueClass(CommuneCategories.class);
+            job1.setOutputKeyClass(Text.class);
+            job1.setOutputValueClass(Text.class);
+            job1.setMapperClass(Mapper2.class);
+            job1.setReducerClass(Reducer2.class);
+            job1.setInputFormatClass(SequenceFileInputFormat.class);
+            job1.setOutputFormatClass(TextOutputFormat.class);
+            MultipleOutputs.addNamedOutput(job1, CROSSTAB_OUTPUT, SequenceFileOutputFormat.class,
+                    ByteWritable.class, JointCounts.class);
+            EnedisJobs.setNumReduceTasks(job1);
+            EnedisJobs.setCompression(job1);
+
+            EnedisJobs.addStageInput(job1, new Path(output));
+
+            String outfinal = new String(output+"-final");
+            FileOutputFormat.setOutputPath(job1, new Path(outfinal));
+
+            report.complete(job1);
+        } finally {
+            report.write(conf, new Path(output + "-report.json"));
+        }
+    }
 
+    /**
+     * Compute the total of each commune for the lines of one year of *input*, and store these
+     * totals as the partial aggregates of the year in the state directory.
+     */
+    public static void runYear(Configuration conf, String input, boolean columnar, Path state, int year,
+                               RunReport report) throws Exception {
+        Path partial = EnedisJobs.getYearPath(state, year, STATE_NAME);
+        Path output = partial.suffix(".tmp");
+        output.getFileSystem(conf).delete(output, true);
+
+        Job job = new Job(conf, "YearRun");
+        job.getConfiguration().setInt(EnedisJobs.YEAR_PROPERTY, year);
+        job.setJarByClass(EnedisByConsumption.class);
+        job.setOutputKeyClass(GroupKey.class);
+        job.setOutputValueClass(CommuneTotal.class);
+        job.setMapperClass(Mapper1.class);
+        job.setCombinerClass(TotalCombiner.class);
+        job.setReducerClass(TotalCombiner.class);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        EnedisJobs.setNumReduceTasks(job);
+        EnedisJobs.setCompression(job);
+
+        EnedisJobs.setRawInput(job, new Path(input), columnar, getColumns(conf));
+        FileOutputFormat.setOutputPath(job, output);
+        EnedisJobs.setRangePartitioner(job, new int[] {getGrain(conf)});
+
+        report.complete(job);
+        EnedisJobs.commitYear(conf, output, partial);
     }
 
-}
\ No newline at end of file
+}
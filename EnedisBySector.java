@@ -1,3 +1,5 @@
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.util.*;
 
@@ -5,13 +7,45 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.conf.*;
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.mapreduce.*;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 public class EnedisBySector {
 
+    /** Columns of the dataset read by PerDepartmentMapper, besides the codes of the groupings (see getColumns). */
+    public static final String COLUMNS = "0,12,15-23";
+
+    /** Name of the per-year partial aggregates of this analysis in the state directory. */
+    public static final String STATE_NAME = "sector";
+
+    /**
+     * Groupings counted in a single scan, separated by semicolons, e.g. "department;year,department;region".
+     * The first one is written to the job output, the other ones to named outputs (see GroupKey).
+     */
+    public static final String GROUPINGS_PROPERTY = "enedis.sector.groupings";
+    public static final String DEFAULT_GROUPINGS = "department";
+
+    /** Number of departments (or entities) reported per sector, by decreasing number of communes. */
+    public static final String TOPK_PROPERTY = "enedis.sector.topk";
+
+    /** Number of sectors per department whose rankings the department enters, by decreasing number of communes. */
+    public static final String TOPK_SECTORS_PROPERTY = "enedis.sector.topk.sectors";
+
+    public static int[] getGroupings(Configuration conf) {
+        return GroupKey.parseGroupings(conf.get(GROUPINGS_PROPERTY, DEFAULT_GROUPINGS));
+    }
+
+    /**
+     * @return the columns read by PerDepartmentMapper with the groupings of *conf*
+     */
+    public static String getColumns(Configuration conf) {
+        return COLUMNS + GroupKey.getColumns(getGroupings(conf));
+    }
+
     public static String[] SECTORLABELS = {"Résidentiel",
                                             "Professionnel",
                                             "Agriculture",
@@ -19,202 +53,907 @@ public class EnedisBySector {
                                             "Tertiaire",
                                             "Autres"};
 
-    public static String getMaxSector(Float[] avgs) {
+    /** Indexes of SECTORLABELS in the order of the labels, the order of the sectors in the final output. */
+    public static final int[] SECTOR_ORDER = EnedisJobs.getLabelOrder(SECTORLABELS);
+
+    /**
+     * Return the index in SECTORLABELS of the sector with the biggest average.
+     */
+    public static int getMaxSector(float[] avgs) {
         int maxIndex = 0;
         for (int i = 1; i < avgs.length; i++) {
-            Float newnumber = avgs[i];
+            float newnumber = avgs[i];
             if ((newnumber > avgs[maxIndex])) {
                 maxIndex = i;
             }
         }
-        return SECTORLABELS[maxIndex];
+        return maxIndex;
+    }
+
+    /**
+     * Number of communes per sector for one department, indexed like SECTORLABELS.
+     */
+    public static class SectorCounts implements Writable {
+
+        private final int[] counts = new int[SECTORLABELS.length];
+
+        public void clear() {
+            Arrays.fill(counts, 0);
+        }
+
+        public void increment(int sector) {
+            counts[sector]++;
+        }
+
+        public void add(SectorCounts other) {
+            for (int i = 0; i < counts.length; i++)
+                counts[i] += other.counts[i];
+        }
+
+        public int get(int sector) {
+            return counts[sector];
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            for (int count : counts)
+                WritableUtils.writeVInt(out, count);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            for (int i = 0; i < counts.length; i++)
+                counts[i] = WritableUtils.readVInt(in);
+        }
+
+        /**
+         * Same format as the old text output: Résidentiel:n,Professionnel:n,...
+         */
+        @Override
+        public String toString() {
+            StringBuilder output_value = new StringBuilder();
+            for (int i=0; i < SECTORLABELS.length ; i++) {
+                output_value.append(SECTORLABELS[i]);
+                output_value.append(":");
+                output_value.append(counts[i]);
+                if (i!=SECTORLABELS.length-1)
+                    output_value.append(",");
+            }
+            return output_value.toString();
+        }
     }
 
-    public static Float[] extractSectorAvgs(String[] cols) {
-        Float avg_residence = Float.parseFloat(cols[12]);
+    /**
+     * The code of a department (or of the entity of another grouping), one of its sectors with the most
+     * communes and the number of these communes. *ties* counts the other departments with the same count
+     * for the sector which a combiner dropped after this one.
+     */
+    public static class DepartmentCount implements Writable {
+
+        private byte sector;
+        private final Text department = new Text();
+        private int count;
+        private int ties;
+
+        public void set(int sector, Text department, int count, int ties) {
+            this.sector = (byte) sector;
+            this.department.set(department);
+            this.count = count;
+            this.ties = ties;
+        }
+
+        public int getSector() {
+            return sector;
+        }
 
-        Float avg_pro = Float.parseFloat(cols[15]);
+        public Text getDepartment() {
+            return department;
+        }
 
-        Float nb_agriculture = Float.parseFloat(cols[16]);
-        Float total_agriculture = Float.parseFloat(cols[17]);
-        Float avg_agriculture = total_agriculture / nb_agriculture ;
+        public int getCount() {
+            return count;
+        }
+
+        public int getTies() {
+            return ties;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            out.writeByte(sector);
+            department.write(out);
+            WritableUtils.writeVInt(out, count);
+            WritableUtils.writeVInt(out, ties);
+        }
 
-        Float nb_industry = Float.parseFloat(cols[18]);
-        Float total_industry = Float.parseFloat(cols[19]);
-        Float avg_industry = total_industry / nb_industry ;
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            sector = in.readByte();
+            department.readFields(in);
+            count = WritableUtils.readVInt(in);
+            ties = WritableUtils.readVInt(in);
+        }
 
-        Float nb_tertiary = Float.parseFloat(cols[20]);
-        Float total_tertiary = Float.parseFloat(cols[21]);
-        Float avg_tertiary = total_tertiary / nb_tertiary ;
+        @Override
+        public String toString() {
+            return SECTORLABELS[sector] + ":" + department + ":" + count + (ties > 0 ? "+" + ties : "");
+        }
+    }
 
-        Float nb_other = Float.parseFloat(cols[22]);
-        Float total_other = Float.parseFloat(cols[23]);
-        Float avg_other = total_other / nb_other ;
+    /**
+     * Fill *avgs* with the average consumption per site of the 6 sectors, in the order of SECTORLABELS.
+     *
+     * @param cols: one line from the dataset, split by a FieldTokenizer
+     * @param avgs: array of SECTORLABELS.length values, reused between lines
+     * @return avgs
+     */
+    public static float[] extractSectorAvgs(FieldTokenizer cols, float[] avgs) {
+        return computeSectorAvgs(cols.getFloat(12), cols.getFloat(15),
+                cols.getFloat(16), cols.getFloat(17),
+                cols.getFloat(18), cols.getFloat(19),
+                cols.getFloat(20), cols.getFloat(21),
+                cols.getFloat(22), cols.getFloat(23),
+                avgs);
+    }
 
-        Float[] avgs = {avg_residence, avg_pro, avg_agriculture, avg_industry, avg_tertiary, avg_other};
+    /**
+     * Same as extractSectorAvgs, from values already parsed (columns 12, 15 and 16 to 23).
+     */
+    public static float[] computeSectorAvgs(float avg_residence, float avg_pro,
+                                            float nb_agriculture, float total_agriculture,
+                                            float nb_industry, float total_industry,
+                                            float nb_tertiary, float total_tertiary,
+                                            float nb_other, float total_other,
+                                            float[] avgs) {
+        float avg_agriculture = averagePerSite(total_agriculture, nb_agriculture);
+        float avg_industry = averagePerSite(total_industry, nb_industry);
+        float avg_tertiary = averagePerSite(total_tertiary, nb_tertiary);
+        float avg_other = averagePerSite(total_other, nb_other);
+
+        avgs[0] = avg_residence;
+        avgs[1] = avg_pro;
+        avgs[2] = avg_agriculture;
+        avgs[3] = avg_industry;
+        avgs[4] = avg_tertiary;
+        avgs[5] = avg_other;
 
         return avgs;
     }
 
-    public static class PerDepartmentMapper extends Mapper<LongWritable, Text, Text, Text>{
+    /**
+     * A sector without any site in the commune has no consumption: its average is 0, rather than the
+     * NaN or Infinity of a division by 0, which getMaxSector could pick.
+     */
+    public static float averagePerSite(float total, float sites) {
+        return sites == 0 ? 0 : total / sites;
+    }
+
+    public static class PerDepartmentMapper extends Mapper<LongWritable, Text, GroupKey, SectorCounts>{
+
+        /** Flush the partial counts if a split holds more groups than this. */
+        public static final int MAX_BUFFERED_DEPARTMENTS = 10000;
+
+        private final FieldTokenizer cols = new FieldTokenizer(';');
+        private final float[] avgs = new float[SECTORLABELS.length];
+        private final GroupKey group = new GroupKey();
+        private final Map<GroupKey,SectorCounts> counts_per_department = new HashMap<GroupKey,SectorCounts>();
+        private final EnedisJobs.SampledTimer extract_timer = new EnedisJobs.SampledTimer("extractSectorAvgs");
+        private int[] groupings;
+        private int year;
+        private EnedisZoneMap.Filter filter;
+        private Counter lines;
+        private Counter line_bytes;
+        private Counter other_year;
+        private Counter filtered;
+        private Counter partials;
+        private EnedisJobs.Quarantine quarantine;
+
+        @Override
+        protected void setup(Context context) {
+            groupings = getGroupings(context.getConfiguration());
+            year = context.getConfiguration().getInt(EnedisJobs.YEAR_PROPERTY, -1);
+            filter = EnedisZoneMap.Filter.get(context.getConfiguration());
+            lines = context.getCounter(EnedisJobs.Records.LINES);
+            line_bytes = context.getCounter(EnedisJobs.Records.LINE_BYTES);
+            other_year = context.getCounter(EnedisJobs.Records.OTHER_YEAR);
+            filtered = context.getCounter(EnedisJobs.Records.FILTERED);
+            partials = context.getCounter(EnedisJobs.Records.PARTIALS);
+            quarantine = new EnedisJobs.Quarantine(context, COLUMNS);
+        }
+
         /**
          * Per line, calculate the average consumption per site for each of the 6 sectors.
-         * Return the name of the sector with the biggest consumption.
+         * Count the sector with the biggest consumption for the department of the line (or for its
+         * group in each configured grouping).
+         * The counts are aggregated in memory and written once per department in cleanup(),
+         * so the shuffle carries one vector per department and per map task instead of one record per line.
          */
         public void map(LongWritable key, Text value, Context context)
                 throws IOException, InterruptedException {
-            String[] cols = value.toString().split(";");
-            String year = cols[0];
-            String departement = cols[7];
-
-            Float[] avgs = extractSectorAvgs(cols);
+            cols.reset(value);
+            lines.increment(1);
+            line_bytes.increment(value.getLength());
+
+            try {
+                if (year >= 0 && cols.getInt(0) != year) {
+                    other_year.increment(1);
+                    return;
+                }
+                if (filter != null && !filter.accept(cols)) {
+                    filtered.increment(1);
+                    return;
+                }
+                boolean timed = extract_timer.start();
+                extractSectorAvgs(cols, avgs);
+                if (timed)
+                    extract_timer.stop();
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                quarantine.reject(cols, value);
+                return;
+            }
+            int sector = getMaxSector(avgs);
+
+            for (int grouping : groupings) {
+                group.set(grouping, cols);
+                SectorCounts counts = counts_per_department.get(group);
+                if (counts == null) {
+                    if (counts_per_department.size() >= MAX_BUFFERED_DEPARTMENTS)
+                        flush(context);
+                    counts = new SectorCounts();
+                    GroupKey copy = new GroupKey();
+                    copy.set(group);
+                    counts_per_department.put(copy, counts);
+                }
+                counts.increment(sector);
+            }
+        }
 
-            String max_sector = getMaxSector(avgs);
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            flush(context);
+            extract_timer.flush(context);
+            quarantine.close();
+        }
 
-            context.write(new Text(departement), new Text(max_sector));
+        private void flush(Context context) throws IOException, InterruptedException {
+            for (Map.Entry<GroupKey,SectorCounts> entry : counts_per_department.entrySet())
+                context.write(entry.getKey(), entry.getValue());
+            partials.increment(counts_per_department.size());
+            counts_per_department.clear();
         }
     }
 
-    public static class PerSectorCountReducer extends Reducer<Text,Text,Text,Text> {
+    public static class PerSectorCountReducer extends Reducer<GroupKey,SectorCounts,GroupKey,SectorCounts> {
+
+        private final SectorCounts count_per_sector = new SectorCounts();
 
         /**
-         * Per department and per sector, return the number of communes for which the sector consumed the most.
+         * Per department and per sector, return the number of communes for which the sector consumed the most,
+         * by summing the partial counts of the mappers.
          */
-        public void reduce(Text key, Iterable<Text> values,
+        public void reduce(GroupKey key, Iterable<SectorCounts> values,
                            Context context
         ) throws IOException, InterruptedException {
-            Map<String,Integer> count_per_sector = new HashMap<String,Integer>();
+            count_per_sector.clear();
 
-            for (int i=0; i < SECTORLABELS.length ; i++)
-                count_per_sector.put(SECTORLABELS[i],0);
+            for (SectorCounts counts : values)
+                count_per_sector.add(counts);
 
-            for (Text sector : values) {
-                Integer oldvalue = count_per_sector.get(sector.toString());
-                count_per_sector.put(sector.toString(),oldvalue + 1);
-            }
+            context.write(key, count_per_sector);
+        }
+    }
 
-            StringBuilder output_value = new StringBuilder();
-            output_value.append("");
-            String sector = new String();
 
-            for (int i=0; i < SECTORLABELS.length ; i++) {
-                sector = SECTORLABELS[i];
-                output_value.append(sector);
-                output_value.append(":");
-                output_value.append(count_per_sector.get(sector));
-                if (i!=SECTORLABELS.length-1)
-                    output_value.append(",");
+    /**
+     * Send the counts of each department to the partition of its grouping (the whole grouping
+     * for a grouping of one dimension), once for each of its sectors with the most communes.
+     */
+    public static class ExtractMaxSectorMapper extends Mapper<GroupKey, SectorCounts, GroupKey, DepartmentCount>{
+
+        private final GroupKey partition = new GroupKey();
+        private final Text department = new Text();
+        private final DepartmentCount output_value = new DepartmentCount();
+        private final int[] top_sectors = new int[SECTORLABELS.length];
+        private int sectors_k;
+
+        @Override
+        protected void setup(Context context) {
+            sectors_k = context.getConfiguration().getInt(TOPK_SECTORS_PROPERTY, 1);
+        }
+
+        public void map(GroupKey group, SectorCounts counts, Context context)
+                throws IOException, InterruptedException {
+            int top = getTopSectors(counts, sectors_k, top_sectors);
+            if (top == 0)
+                return;
+
+            group.getPartition(partition);
+            group.getEntity(department);
+            for (int i = 0; i < top; i++) {
+                output_value.set(top_sectors[i], department, counts.get(top_sectors[i]), 0);
+                context.write(partition, output_value);
             }
+        }
+
+    }
 
-            context.write(key, new Text(output_value.toString()));
+    /**
+     * Keep the top departments of each sector sent by a map task, with the number of dropped ties,
+     * so the reducer of a partition receives at most K departments per sector and per map task.
+     */
+    public static class SectorTopKCombiner extends Reducer<GroupKey,DepartmentCount,GroupKey,DepartmentCount> {
+
+        private SectorTopK top;
+
+        @Override
+        protected void setup(Context context) {
+            top = new SectorTopK(context.getConfiguration().getInt(TOPK_PROPERTY, 1));
+        }
+
+        public void reduce(GroupKey key, Iterable<DepartmentCount> values,
+                           Context context
+        ) throws IOException, InterruptedException {
+            top.clear();
+
+            for (DepartmentCount val : values)
+                top.offer(val.getSector(), val.getDepartment(), val.getCount(), val.getTies());
+
+            top.emit(key, context);
         }
     }
 
+    public static class ParSectorDepartmentWithMaxCountReducer extends Reducer<GroupKey,DepartmentCount,Text,Text> {
 
-    public static class ExtractMaxSectorMapper extends Mapper<LongWritable, Text, Text, Text>{
+        private SectorTopK top;
+        private GroupedOutput output;
 
-        public void map(LongWritable key, Text value, Context context)
-                throws IOException, InterruptedException {
-            String department = value.toString().split("\t")[0];
-            String counts = value.toString().split("\t")[1];
-            String[] sector_counts = counts.split(",");
-
-            Integer max = 0;
-            String maxSector = "";
-
-            for (String entry : sector_counts) {
-                String sector = entry.split(":")[0];
-                Integer count = Integer.parseInt(entry.split(":")[1]);
-                if (count > max) {
-                    max = count;
-                    maxSector = sector;
-                }
-            }
+        @Override
+        protected void setup(Context context) {
+            top = new SectorTopK(context.getConfiguration().getInt(TOPK_PROPERTY, 1));
+            output = new GroupedOutput(context);
+        }
 
-            StringBuilder output_value = new StringBuilder();
-            output_value.append(department);
-            output_value.append(":");
-            output_value.append(max.toString());
+        public void reduce(GroupKey key, Iterable<DepartmentCount> values,
+                           Context context
+        ) throws IOException, InterruptedException {
+            top.clear();
+
+            for (DepartmentCount val : values)
+                top.offer(val.getSector(), val.getDepartment(), val.getCount(), val.getTies());
 
-            context.write(new Text(maxSector), new Text(output_value.toString()));
+            top.write(key, output);
         }
 
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            output.close();
+        }
     }
 
-    public static class ParSectorDepartmentWithMaxCountReducer extends Reducer<Text,Text,Text,Text> {
+    /**
+     * Single reducer of the --fused mode: sum the counts of each department like PerSectorCountReducer,
+     * then keep for each sector the departments with the highest counts, like the second job.
+     * About 100 departments reach this reducer, and each partition only keeps K departments per sector,
+     * so the final output is written in cleanup().
+     */
+    public static class FusedMaxDepartmentReducer extends Reducer<GroupKey,SectorCounts,Text,Text> {
+
+        private final SectorCounts count_per_sector = new SectorCounts();
+        private final Map<GroupKey,SectorTopK> top_per_partition = new TreeMap<GroupKey,SectorTopK>();
+        private final GroupKey partition = new GroupKey();
+        private final Text department = new Text();
+        private final int[] top_sectors = new int[SECTORLABELS.length];
+        private int k;
+        private int sectors_k;
+        private GroupedOutput output;
+
+        @Override
+        protected void setup(Context context) {
+            k = context.getConfiguration().getInt(TOPK_PROPERTY, 1);
+            sectors_k = context.getConfiguration().getInt(TOPK_SECTORS_PROPERTY, 1);
+            output = new GroupedOutput(context);
+        }
 
-        public void reduce(Text key, Iterable<Text> values,
+        public void reduce(GroupKey key, Iterable<SectorCounts> values,
                            Context context
         ) throws IOException, InterruptedException {
-            Integer max = 0;
-            String max_dpt = "";
-
-            for (Text val : values) {
-                String department = val.toString().split(":")[0];
-                Integer count = Integer.parseInt(val.toString().split(":")[1]);
-                if (count > max) {
-                    max = count;
-                    max_dpt = department;
+            count_per_sector.clear();
+
+            for (SectorCounts counts : values)
+                count_per_sector.add(counts);
+
+            int sectors = getTopSectors(count_per_sector, sectors_k, top_sectors);
+            if (sectors == 0)
+                return;
+
+            key.getPartition(partition);
+            SectorTopK top = top_per_partition.get(partition);
+            if (top == null) {
+                top = new SectorTopK(k);
+                GroupKey copy = new GroupKey();
+                copy.set(partition);
+                top_per_partition.put(copy, top);
+            }
+            key.getEntity(department);
+            for (int i = 0; i < sectors; i++)
+                top.offer(top_sectors[i], department, count_per_sector.get(top_sectors[i]), 0);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            for (Map.Entry<GroupKey,SectorTopK> entry : top_per_partition.entrySet())
+                entry.getValue().write(entry.getKey(), output);
+            output.close();
+        }
+    }
+
+    /**
+     * The K departments (or entities) with the most communes, in a bounded heap whose root is the worst of them.
+     * On equal counts, the smallest codes are kept. The departments tied with the last kept one are only counted,
+     * so the memory does not depend on the number of departments.
+     */
+    public static class TopK {
+
+        private static class Entry {
+            final Text department = new Text();
+            int count;
+        }
+
+        private final int k;
+        private final PriorityQueue<Entry> heap;
+        // greatest count of the dropped departments, and their number with this count
+        private int dropped_count = -1;
+        private int dropped;
+
+        public TopK(int k) {
+            this.k = Math.max(1, k);
+            this.heap = new PriorityQueue<Entry>(this.k, (a, b) ->
+                    a.count != b.count ? Integer.compare(a.count, b.count) : b.department.compareTo(a.department));
+        }
+
+        public void clear() {
+            heap.clear();
+            dropped_count = -1;
+            dropped = 0;
+        }
+
+        public boolean isEmpty() {
+            return heap.isEmpty();
+        }
+
+        /**
+         * @param ties: number of departments with the same count, dropped after this one by a combiner
+         */
+        public void offer(Text department, int count, int ties) {
+            if (count == 0)
+                return;
+            if (heap.size() < k) {
+                Entry entry = new Entry();
+                entry.department.set(department);
+                entry.count = count;
+                heap.add(entry);
+            } else {
+                Entry worst = heap.peek();
+                if (count > worst.count || (count == worst.count && department.compareTo(worst.department) < 0)) {
+                    heap.poll();
+                    drop(worst.count, 1);
+                    worst.department.set(department);
+                    worst.count = count;
+                    heap.add(worst);
+                } else {
+                    drop(count, 1);
                 }
             }
+            // the departments dropped by the combiner rank after this one, never in the top K
+            if (ties > 0)
+                drop(count, ties);
+        }
+
+        /**
+         * Every dropped department has at most the count of the last kept one, so the ties of the
+         * last kept one are the dropped departments with the greatest count, if it is the same.
+         */
+        private void drop(int count, int number) {
+            if (count > dropped_count) {
+                dropped_count = count;
+                dropped = number;
+            } else if (count == dropped_count) {
+                dropped += number;
+            }
+        }
+
+        /**
+         * @return the number of dropped departments with the same count as the last kept one
+         */
+        public int getTies() {
+            return !heap.isEmpty() && heap.peek().count == dropped_count ? dropped : 0;
+        }
+
+        /**
+         * @return the kept departments, by decreasing count and increasing code
+         */
+        public List<Text> getDepartments(List<Integer> counts) {
+            List<Entry> entries = new ArrayList<Entry>(heap);
+            entries.sort(heap.comparator().reversed());
+            List<Text> departments = new ArrayList<Text>();
+            for (Entry entry : entries) {
+                departments.add(entry.department);
+                counts.add(entry.count);
+            }
+            return departments;
+        }
 
+        /**
+         * e.g. "Département 67 (58); Département 13, 59 (41) +2 ex aequo": the departments with the same count
+         * are listed together, and the ones dropped with the count of the last one are counted.
+         */
+        public String format(GroupKey.Dimension entity) {
+            List<Integer> counts = new ArrayList<Integer>();
+            List<Text> departments = getDepartments(counts);
             StringBuilder output_value = new StringBuilder();
-            output_value.append("Département ");
-            output_value.append(max_dpt);
-            output_value.append(" (");
-            output_value.append(max.toString());
-            output_value.append(")");
+            for (int i = 0; i < departments.size(); ) {
+                int count = counts.get(i);
+                StringBuilder codes = new StringBuilder(departments.get(i++).toString());
+                while (i < departments.size() && counts.get(i) == count)
+                    codes.append(", ").append(departments.get(i++));
+                if (output_value.length() > 0)
+                    output_value.append("; ");
+                output_value.append(formatGroup(entity, codes.toString(), count));
+            }
+            int ties = getTies();
+            if (ties > 0)
+                output_value.append(" +").append(ties).append(" ex aequo");
+            return output_value.toString();
+        }
+    }
+
+    /**
+     * For one partition of a grouping, the K departments (or entities) with the most communes for each sector.
+     */
+    public static class SectorTopK {
+
+        private final TopK[] sectors = new TopK[SECTORLABELS.length];
+        private final DepartmentCount output_value = new DepartmentCount();
+
+        public SectorTopK(int k) {
+            for (int sector = 0; sector < SECTORLABELS.length; sector++)
+                sectors[sector] = new TopK(k);
+        }
+
+        public void clear() {
+            for (TopK top : sectors)
+                top.clear();
+        }
+
+        public void offer(int sector, Text department, int count, int ties) {
+            sectors[sector].offer(department, count, ties);
+        }
+
+        /**
+         * Write the kept departments as map outputs of the partition, the ties with the last one of each sector.
+         */
+        public void emit(GroupKey partition, TaskInputOutputContext<?,?,GroupKey,DepartmentCount> context)
+                throws IOException, InterruptedException {
+            for (int sector = 0; sector < SECTORLABELS.length; sector++) {
+                List<Integer> counts = new ArrayList<Integer>();
+                List<Text> departments = sectors[sector].getDepartments(counts);
+                for (int i = 0; i < departments.size(); i++) {
+                    int ties = i == departments.size() - 1 ? sectors[sector].getTies() : 0;
+                    output_value.set(sector, departments.get(i), counts.get(i), ties);
+                    context.write(partition, output_value);
+                }
+            }
+        }
 
-            context.write(key,new Text(output_value.toString()));
+        /**
+         * Write one line per sector with a department: the sector label, prefixed by the codes of the
+         * partition if any, and the departments with their counts.
+         */
+        public void write(GroupKey partition, GroupedOutput output) throws IOException, InterruptedException {
+            int grouping = partition.getGrouping();
+            GroupKey.Dimension entity = GroupKey.getEntity(grouping);
+            String prefix = partition.getLabel();
+
+            for (int sector : SECTOR_ORDER) {
+                if (sectors[sector].isEmpty())
+                    continue;
+                String label = prefix.isEmpty() ? SECTORLABELS[sector] : prefix + " / " + SECTORLABELS[sector];
+                output.write(grouping, new Text(label), new Text(sectors[sector].format(entity)));
+            }
         }
     }
 
-    public static void main(String[] args) throws Exception {
+    /**
+     * Final output of the groupings: the first grouping is written to the output of the job,
+     * the other ones to the named outputs declared by addGroupedOutputs.
+     */
+    public static class GroupedOutput {
+
+        private final TaskInputOutputContext<?,?,Text,Text> context;
+        private final MultipleOutputs<Text,Text> outputs;
+        private final int main_grouping;
+        private final Counter report_lines;
+
+        public GroupedOutput(TaskInputOutputContext<?,?,Text,Text> context) {
+            this.context = context;
+            this.outputs = new MultipleOutputs<Text,Text>(context);
+            this.main_grouping = getGroupings(context.getConfiguration())[0];
+            this.report_lines = context.getCounter(EnedisJobs.Records.REPORT_LINES);
+        }
 
-        if (args.length < 2) {
-            System.err.println("Usage : hadoop jar EnedisBySector.jar EnedisBySector input output");
-            System.exit(0);
+        public void write(int grouping, Text key, Text value) throws IOException, InterruptedException {
+            report_lines.increment(1);
+            if (grouping == main_grouping)
+                context.write(key, value);
+            else
+                outputs.write(GroupKey.getName(grouping), key, value);
         }
 
-        Configuration conf = new Configuration();
+        public void close() throws IOException, InterruptedException {
+            outputs.close();
+        }
+    }
 
-        Job job1 = new Job(conf, "FirstRun");
-        job1.setJarByClass(EnedisBySector.class);
-        job1.setOutputKeyClass(Text.class);
-        job1.setOutputValueClass(Text.class);
-        job1.setMapperClass(PerDepartmentMapper.class);
-        job1.setReducerClass(PerSectorCountReducer.class);
+    /**
+     * Declare one named output per grouping but the first, e.g. yearDepartment-r-00000.
+     */
+    public static void addGroupedOutputs(Job job) {
+        int[] groupings = getGroupings(job.getConfiguration());
+        for (int g = 1; g < groupings.length; g++)
+            MultipleOutputs.addNamedOutput(job, GroupKey.getName(groupings[g]), TextOutputFormat.class, Text.class, Text.class);
+    }
 
-        job1.setInputFormatClass(TextInputFormat.class);
-        job1.setOutputFormatClass(TextOutputFormat.class);
+    /**
+     * Fill *sectors* with the indexes of the *k* sectors with the most communes, by decreasing count, and of
+     * the sectors tied with the last of them. Sectors without any commune are not kept.
+     *
+     * @param sectors: array of SECTORLABELS.length values
+     * @return the number of sectors kept
+     */
+    public static int getTopSectors(SectorCounts counts, int k, int[] sectors) {
+        int size = 0;
+        for (int sector = 0; sector < SECTORLABELS.length; sector++) {
+            int count = counts.get(sector);
+            if (count == 0)
+                continue;
+            // insertion sort by decreasing count, the first sector first on ties
+            int i = size++;
+            while (i > 0 && counts.get(sectors[i - 1]) < count) {
+                sectors[i] = sectors[i - 1];
+                i--;
+            }
+            sectors[i] = sector;
+        }
+        int kept = Math.min(Math.max(1, k), size);
+        while (kept < size && counts.get(sectors[kept]) == counts.get(sectors[kept - 1]))
+            kept++;
+        return kept;
+    }
 
-        FileInputFormat.addInputPath(job1, new Path(args[0]));
-        FileOutputFormat.setOutputPath(job1, new Path(args[1]));
+    /**
+     * e.g. "Département 67 (12)"
+     */
+    public static String formatGroup(GroupKey.Dimension entity, String code, int count) {
+        StringBuilder output_value = new StringBuilder();
+        output_value.append(entity.getLabel());
+        output_value.append(" ");
+        output_value.append(code);
+        output_value.append(" (");
+        output_value.append(count);
+        output_value.append(")");
+        return output_value.toString();
+    }
 
-        job1.waitForCompletion(true);
+    public static void main(String[] args) throws Exception {
 
-        System.out.println("----------------------------------------------");
-        System.out.println("END OF FIRST JOB");
-        System.out.println("----------------------------------------------");
+        Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        run(conf, args);
+    }
 
-        Job job2 = new Job(conf, "SecondRun");
-        job2.setJarByClass(EnedisBySector.class);
-        job2.setOutputKeyClass(Text.class);
-        job2.setOutputValueClass(Text.class);
-        job2.setMapperClass(ExtractMaxSectorMapper.class);
-        job2.setReducerClass(ParSectorDepartmentWithMaxCountReducer.class);
+    /**
+     * Run the analysis with the arguments of main, once the generic options are parsed into *conf*.
+     * Stop at the first job which fails, since the next ones read its output.
+     *
+     * @throws IOException if a job fails
+     */
+    public static void run(Configuration conf, String[] args) throws Exception {
+        List<String> paths = new ArrayList<String>();
+        boolean fused = false;
+        boolean columnar = false;
+        String state = null;
+        String years = null;
+        int year = -1;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--fused"))
+                fused = true;
+            else if (arg.equals("--columnar"))
+                columnar = true;
+            else if (arg.equals("--state") && i + 1 < args.length)
+                state = args[++i];
+            else if (arg.equals("--year") && i + 1 < args.length)
+                year = Integer.parseInt(args[++i]);
+            else if (arg.equals("--years") && i + 1 < args.length)
+                years = args[++i];
+            else if (arg.equals("--map-codec") && i + 1 < args.length)
+                conf.set(EnedisJobs.MAP_CODEC_PROPERTY, args[++i]);
+            else if (arg.equals("--output-codec") && i + 1 < args.length)
+                conf.set(EnedisJobs.OUTPUT_CODEC_PROPERTY, args[++i]);
+            else if (arg.equals("--threads") && i + 1 < args.length)
+                EnedisJobs.setLocalThreads(conf, Integer.parseInt(args[++i]));
+            else if (arg.equals("--filter-years") && i + 1 < args.length)
+                conf.set(EnedisZoneMap.YEARS_PROPERTY, args[++i]);
+            else if (arg.equals("--filter-departments") && i + 1 < args.length)
+                conf.set(EnedisZoneMap.DEPARTMENTS_PROPERTY, args[++i]);
+            else
+                paths.add(arg);
+        }
 
-        job2.setInputFormatClass(TextInputFormat.class);
-        job2.setOutputFormatClass(TextOutputFormat.class);
+        // with --state and without --year, the report is rebuilt from the stored years only
+        // the filters only apply to full runs, the partial aggregates of a year must hold all its lines
+        boolean with_input = state == null || year >= 0;
+        boolean filtered = EnedisZoneMap.Filter.get(conf) != null;
+        if (paths.size() < (with_input ? 2 : 1) || (year >= 0 && state == null) || (filtered && state != null)) {
+            System.err.println("Usage : hadoop jar EnedisBySector.jar EnedisBySector [--fused] [--columnar] [--map-codec C] [--output-codec C] [--threads N] [--filter-years Y1,Y2] [--filter-departments D1,D2] input output");
+            System.err.println("        hadoop jar EnedisBySector.jar EnedisBySector [--fused] [--columnar] [--map-codec C] [--output-codec C] [--threads N] --state dir [--year Y input] [--years Y1,Y2] output");
+            System.exit(0);
+        }
+        String input = with_input ? paths.get(0) : null;
+        String output = paths.get(paths.size() - 1);
+
+        RunReport report = new RunReport("EnedisBySector");
+        // also written when a job fails, with its "success": false entry
+        try {
+            if (state != null && year >= 0)
+                runYear(conf, input, columnar, new Path(state), year, report);
+
+            if (fused) {
+                if (state == null)
+                    runFused(conf, input, columnar, output+"-final", report);
+                else
+                    runFusedFromState(conf, new Path(state), years, output+"-final", report);
+                return;
+            }
 
-        String inFile = new String(args[1]+"/part-r-00000");
-        FileInputFormat.addInputPath(job2, new Path(inFile));
+            Job job1;
+            if (state == null) {
+                job1 = new Job(conf, "FirstRun");
+                job1.setMapperClass(PerDepartmentMapper.class);
+                EnedisJobs.setRawInput(job1, new Path(input), columnar, getColumns(conf));
+            } else {
+                job1 = new Job(conf, "MergeRun");
+                job1.setMapperClass(Mapper.class);
+                job1.setCombinerClass(PerSectorCountReducer.class);
+                job1.setInputFormatClass(SequenceFileInputFormat.class);
+                EnedisJobs.addStateInput(job1, new Path(state), STATE_NAME, years);
+            }
+            job1.setJarByClass(EnedisBySector.class);
+            job1.setOutputKeyClass(GroupKey.class);
+            job1.setOutputValueClass(SectorCounts.class);
+            job1.setReducerClass(PerSectorCountReducer.class);
+
+            job1.setOutputFormatClass(SequenceFileOutputFormat.class);
+            EnedisJobs.setNumReduceTasks(job1);
+            EnedisJobs.setCompression(job1);
+
+            FileOutputFormat.setOutputPath(job1, new Path(output));
+            EnedisJobs.setRangePartitioner(job1, state == null ? getGroupings(conf) : null);
+
+            report.complete(job1);
+
+            System.out.println("----------------------------------------------");
+            System.out.println("END OF FIRST JOB");
+            System.out.println("----------------------------------------------");
+
+            Job job2 = new Job(conf, "SecondRun");
+            job2.setJarByClass(EnedisBySector.class);
+            job2.setMapOutputKeyClass(GroupKey.class);
+            job2.setMapOutputValueClass(DepartmentCount.class);
+            job2.setOutputKeyClass(Text.class);
+            job2.setOutputValueClass(Text.class);
+            job2.setMapperClass(ExtractMaxSectorMapper.class);
+            job2.setCombinerClass(SectorTopKCombiner.class);
+            job2.setReducerClass(ParSectorDepartmentWithMaxCountReducer.class);
+            addGroupedOutputs(job2);
+
+            job2.setInputFormatClass(SequenceFileInputFormat.class);
+            job2.setOutputFormatClass(TextOutputFormat.class);
+            EnedisJobs.setNumReduceTasks(job2);
+            EnedisJobs.setCompression(job2);
+
+            EnedisJobs.addStageInput(job2, new Path(output));
+
+            String outfinal = new String(output+"-final");
+            FileOutputFormat.setOutputPath(job2, new Path(outfinal));
+
+            report.complete(job2);
+        } finally {
+            report.write(conf, new Path(output + "-report.json"));
+        }
+    }
 
-        String outfinal = new String(args[1]+"-final");
-        FileOutputFormat.setOutputPath(job2, new Path(outfinal));
+    /**
+     * Count the sectors per department for the lines of one year of *input*, and store these
+     * counts as the partial aggregates of the year in the state directory.
+     */
+    public static void runYear(Configuration conf, String input, boolean columnar, Path state, int year,
+                               RunReport report) throws Exception {
+        Path partial = EnedisJobs.getYearPath(state, year, STATE_NAME);
+        Path output = partial.suffix(".tmp");
+        output.getFileSystem(conf).delete(output, true);
+
+        Job job = new Job(conf, "YearRun");
+        job.getConfiguration().setInt(EnedisJobs.YEAR_PROPERTY, year);
+        job.setJarByClass(EnedisBySector.class);
+        job.setOutputKeyClass(GroupKey.class);
+        job.setOutputValueClass(SectorCounts.class);
+        job.setMapperClass(PerDepartmentMapper.class);
+        job.setReducerClass(PerSectorCountReducer.class);
+
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        EnedisJobs.setNumReduceTasks(job);
+        EnedisJobs.setCompression(job);
+
+        EnedisJobs.setRawInput(job, new Path(input), columnar, getColumns(conf));
+        FileOutputFormat.setOutputPath(job, output);
+        EnedisJobs.setRangePartitioner(job, getGroupings(conf));
+
+        report.complete(job);
+        EnedisJobs.commitYear(conf, output, partial);
+    }
 
-        job2.waitForCompletion(true);
+    /**
+     * Same as runFused, from the per-department counts stored for *years* (null for every year).
+     */
+    public static void runFusedFromState(Configuration conf, Path state, String years, String output,
+                                         RunReport report) throws Exception {
+        Job job = new Job(conf, "FusedRun");
+        job.setJarByClass(EnedisBySector.class);
+        job.setMapOutputKeyClass(GroupKey.class);
+        job.setMapOutputValueClass(SectorCounts.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+        job.setMapperClass(Mapper.class);
+        job.setCombinerClass(PerSectorCountReducer.class);
+        job.setReducerClass(FusedMaxDepartmentReducer.class);
+        job.setNumReduceTasks(1);
+        addGroupedOutputs(job);
+
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        job.setOutputFormatClass(TextOutputFormat.class);
+        EnedisJobs.setCompression(job);
+
+        EnedisJobs.addStateInput(job, state, STATE_NAME, years);
+        FileOutputFormat.setOutputPath(job, new Path(output));
+
+        report.complete(job);
+    }
 
+    /**
+     * Produce the final output in a single job with FusedMaxDepartmentReducer,
+     * without writing the per-department counts.
+     */
+    public static void runFused(Configuration conf, String input, boolean columnar, String output,
+                                RunReport report) throws Exception {
+        Job job = new Job(conf, "FusedRun");
+        job.setJarByClass(EnedisBySector.class);
+        job.setMapOutputKeyClass(GroupKey.class);
+        job.setMapOutputValueClass(SectorCounts.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+        job.setMapperClass(PerDepartmentMapper.class);
+        job.setReducerClass(FusedMaxDepartmentReducer.class);
+        job.setNumReduceTasks(1);
+        addGroupedOutputs(job);
+
+        job.setOutputFormatClass(TextOutputFormat.class);
+        EnedisJobs.setCompression(job);
+
+        EnedisJobs.setRawInput(job, new Path(input), columnar, getColumns(conf));
+        FileOutputFormat.setOutputPath(job, new Path(output));
+
+        report.complete(job);
     }
 
 }
\ No newline at end of file
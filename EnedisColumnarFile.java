@@ -0,0 +1,437 @@
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.util.LineReader;
+
+/**
+ * Column-chunked copy of the semicolon separated Enedis dataset.
+ *
+ * The rows are stored in blocks of a few thousand lines. Inside a block, the values of each
+ * column are stored together, so a job can read only the columns it needs and seek over the
+ * others. The values are kept as raw bytes: the mappers parse them exactly like the CSV.
+ *
+ * File layout:
+ *   "ENCOL" version
+ *   blocks: BLOCK_MAGIC rows columns widths_length column_length[columns]
+ *           widths (number of fields of each row, as varints)
+ *           column chunks (for each row with enough fields: varint length + bytes)
+ *   footer: block count, then (offset, first row) of each block, then the footer offset
+ *
+ * Convert the CSV once with:
+ *   hadoop jar EnedisBySector.jar EnedisColumnarFile input input-columnar [rows per block]
+ */
+public class EnedisColumnarFile {
+
+    public static final byte[] MAGIC = {'E', 'N', 'C', 'O', 'L', 1};
+    public static final int BLOCK_MAGIC = 0x424C4B31;
+    public static final int DEFAULT_ROWS_PER_BLOCK = 16384;
+    public static final String EXTENSION = ".encol";
+
+    /** Comma separated list of the columns to read, with ranges, e.g. "0,7,12,15-23". */
+    public static final String COLUMNS_PROPERTY = "enedis.columnar.columns";
+
+    /**
+     * Parse a column list such as "0,7,12,15-23".
+     */
+    public static boolean[] parseColumns(String spec) {
+        List<Integer> columns = new ArrayList<Integer>();
+        int max = -1;
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            if (part.isEmpty())
+                continue;
+            int dash = part.indexOf('-');
+            int first = Integer.parseInt(dash < 0 ? part : part.substring(0, dash));
+            int last = dash < 0 ? first : Integer.parseInt(part.substring(dash + 1));
+            for (int c = first; c <= last; c++) {
+                columns.add(c);
+                max = Math.max(max, c);
+            }
+        }
+        boolean[] projected = new boolean[max + 1];
+        for (int c : columns)
+            projected[c] = true;
+        return projected;
+    }
+
+    /**
+     * Write the lines of one CSV file in the columnar layout.
+     */
+    public static class Writer {
+
+        private final FSDataOutputStream out;
+        private final int rows_per_block;
+        private final FieldTokenizer fields = new FieldTokenizer(';');
+
+        private final DataOutputBuffer widths = new DataOutputBuffer();
+        private final List<DataOutputBuffer> chunks = new ArrayList<DataOutputBuffer>();
+        private int rows;
+        private int columns;
+
+        private final List<long[]> blocks = new ArrayList<long[]>();
+        private long total_rows;
+
+        public Writer(FSDataOutputStream out, int rows_per_block) throws IOException {
+            this.out = out;
+            this.rows_per_block = rows_per_block;
+            out.write(MAGIC);
+        }
+
+        public void append(Text line) throws IOException {
+            fields.reset(line);
+            int width = fields.size();
+            writeVarint(widths, width);
+            for (int c = 0; c < width; c++) {
+                if (c == chunks.size())
+                    chunks.add(new DataOutputBuffer());
+                DataOutputBuffer chunk = chunks.get(c);
+                writeVarint(chunk, fields.getLength(c));
+                chunk.write(fields.getBytes(), fields.getStart(c), fields.getLength(c));
+            }
+            columns = Math.max(columns, width);
+            rows++;
+            if (rows == rows_per_block)
+                flushBlock();
+        }
+
+        private void flushBlock() throws IOException {
+            if (rows == 0)
+                return;
+            blocks.add(new long[]{out.getPos(), total_rows});
+            out.writeInt(BLOCK_MAGIC);
+            out.writeInt(rows);
+            out.writeInt(columns);
+            out.writeInt(widths.getLength());
+            for (int c = 0; c < columns; c++)
+                out.writeInt(chunks.get(c).getLength());
+            out.write(widths.getData(), 0, widths.getLength());
+            for (int c = 0; c < columns; c++)
+                out.write(chunks.get(c).getData(), 0, chunks.get(c).getLength());
+
+            total_rows += rows;
+            rows = 0;
+            columns = 0;
+            widths.reset();
+            for (DataOutputBuffer chunk : chunks)
+                chunk.reset();
+        }
+
+        public void close() throws IOException {
+            flushBlock();
+            long footer = out.getPos();
+            out.writeInt(blocks.size());
+            for (long[] block : blocks) {
+                out.writeLong(block[0]);
+                out.writeLong(block[1]);
+            }
+            out.writeLong(footer);
+            out.close();
+        }
+    }
+
+    /**
+     * Block offsets of a columnar file, read from its footer.
+     */
+    public static class Footer {
+
+        /** offsets[i] is the start of block i, offsets[blocks] the start of the footer. */
+        public final long[] offsets;
+        public final long[] first_rows;
+
+        public Footer(FileSystem fs, Path file, long length) throws IOException {
+            FSDataInputStream in = fs.open(file);
+            try {
+                byte[] magic = new byte[MAGIC.length];
+                in.readFully(0, magic);
+                if (!Arrays.equals(magic, MAGIC))
+                    throw new IOException(file + " is not an Enedis columnar file");
+
+                in.seek(length - 8);
+                long footer = in.readLong();
+                in.seek(footer);
+                int blocks = in.readInt();
+                offsets = new long[blocks + 1];
+                first_rows = new long[blocks];
+                for (int i = 0; i < blocks; i++) {
+                    offsets[i] = in.readLong();
+                    first_rows[i] = in.readLong();
+                }
+                offsets[blocks] = footer;
+            } finally {
+                in.close();
+            }
+        }
+
+        public int blocks() {
+            return first_rows.length;
+        }
+    }
+
+    /**
+     * Input format over columnar files. Splits are made of whole blocks, and each record is
+     * rebuilt as a semicolon separated line where the columns that are not projected are empty,
+     * so the mappers of the CSV can be used as they are.
+     */
+    public static class ColumnarInputFormat extends FileInputFormat<LongWritable, Text> {
+
+        public static void setColumns(Job job, String columns) {
+            job.getConfiguration().set(COLUMNS_PROPERTY, columns);
+        }
+
+        @Override
+        public List<InputSplit> getSplits(JobContext job) throws IOException {
+            long max_size = getMaxSplitSize(job);
+            long min_size = Math.max(getFormatMinSplitSize(), getMinSplitSize(job));
+            List<InputSplit> splits = new ArrayList<InputSplit>();
+
+            for (FileStatus file : listStatus(job)) {
+                Path path = file.getPath();
+                FileSystem fs = path.getFileSystem(job.getConfiguration());
+                long split_size = computeSplitSize(file.getBlockSize(), min_size, max_size);
+                Footer footer = new Footer(fs, path, file.getLen());
+
+                int first = 0;
+                while (first < footer.blocks()) {
+                    int last = first + 1;
+                    while (last < footer.blocks() && footer.offsets[last + 1] - footer.offsets[first] <= split_size)
+                        last++;
+                    long start = footer.offsets[first];
+                    long length = footer.offsets[last] - start;
+                    BlockLocation[] locations = fs.getFileBlockLocations(file, start, length);
+                    String[] hosts = locations.length > 0 ? locations[0].getHosts() : new String[0];
+                    splits.add(new FileSplit(path, start, length, hosts));
+                    first = last;
+                }
+            }
+            return splits;
+        }
+
+        @Override
+        public RecordReader<LongWritable, Text> createRecordReader(InputSplit split, TaskAttemptContext context) {
+            return new ColumnarRecordReader();
+        }
+    }
+
+    public static class ColumnarRecordReader extends RecordReader<LongWritable, Text> {
+
+        private FSDataInputStream in;
+        private long start;
+        private long end;
+        private long pos;
+        private boolean[] projected;
+
+        private int rows;
+        private int row;
+        private long first_row;
+        private int columns;
+        private byte[] widths = new byte[0];
+        private int widths_cursor;
+        private byte[][] chunks = new byte[0][];
+        private int[] cursors = new int[0];
+
+        private byte[] line = new byte[1024];
+        private final LongWritable key = new LongWritable();
+        private final Text value = new Text();
+
+        @Override
+        public void initialize(InputSplit genericSplit, TaskAttemptContext context) throws IOException {
+            FileSplit split = (FileSplit) genericSplit;
+            Configuration conf = context.getConfiguration();
+            String spec = conf.get(COLUMNS_PROPERTY);
+            if (spec == null)
+                throw new IOException("No columns to read, set " + COLUMNS_PROPERTY);
+            projected = parseColumns(spec);
+
+            Path path = split.getPath();
+            FileSystem fs = path.getFileSystem(conf);
+            in = fs.open(path);
+            start = split.getStart();
+            end = start + split.getLength();
+            pos = start;
+
+            // row numbers are only used as keys, count them from the footer of the file
+            Footer footer = new Footer(fs, path, fs.getFileStatus(path).getLen());
+            int block = Arrays.binarySearch(footer.offsets, start);
+            first_row = block >= 0 && block < footer.blocks() ? footer.first_rows[block] : 0;
+        }
+
+        /**
+         * Read the header of the next block and the chunks of the projected columns, seeking over the others.
+         */
+        private boolean nextBlock() throws IOException {
+            if (pos >= end)
+                return false;
+            in.seek(pos);
+            if (in.readInt() != BLOCK_MAGIC)
+                throw new IOException("Corrupted columnar block at " + pos);
+            first_row += rows;
+            rows = in.readInt();
+            columns = in.readInt();
+            int widths_length = in.readInt();
+            int[] lengths = new int[columns];
+            for (int c = 0; c < columns; c++)
+                lengths[c] = in.readInt();
+
+            widths = ensure(widths, widths_length);
+            in.readFully(widths, 0, widths_length);
+            widths_cursor = 0;
+
+            if (chunks.length < columns) {
+                chunks = Arrays.copyOf(chunks, columns);
+                cursors = Arrays.copyOf(cursors, columns);
+            }
+            long chunk_start = in.getPos();
+            for (int c = 0; c < columns; c++) {
+                if (c < projected.length && projected[c]) {
+                    if (in.getPos() != chunk_start)
+                        in.seek(chunk_start);
+                    chunks[c] = ensure(chunks[c], lengths[c]);
+                    in.readFully(chunks[c], 0, lengths[c]);
+                }
+                cursors[c] = 0;
+                chunk_start += lengths[c];
+            }
+            pos = chunk_start;
+            row = 0;
+            return true;
+        }
+
+        private static byte[] ensure(byte[] buffer, int length) {
+            return buffer != null && buffer.length >= length ? buffer : new byte[Math.max(length, 1024)];
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException {
+            while (row >= rows) {
+                if (!nextBlock())
+                    return false;
+            }
+
+            int width = readVarint(widths, widths_cursor);
+            widths_cursor = varintEnd;
+            int length = 0;
+            for (int c = 0; c < width; c++) {
+                if (c > 0) {
+                    line = ensureLine(line, length + 1);
+                    line[length++] = ';';
+                }
+                if (c < projected.length && projected[c]) {
+                    int field_length = readVarint(chunks[c], cursors[c]);
+                    int field_start = varintEnd;
+                    line = ensureLine(line, length + field_length);
+                    System.arraycopy(chunks[c], field_start, line, length, field_length);
+                    length += field_length;
+                    cursors[c] = field_start + field_length;
+                }
+            }
+            key.set(first_row + row);
+            value.set(line, 0, length);
+            row++;
+            return true;
+        }
+
+        private int varintEnd;
+
+        private int readVarint(byte[] bytes, int offset) {
+            int result = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[offset++];
+                result |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            varintEnd = offset;
+            return result;
+        }
+
+        private static byte[] ensureLine(byte[] line, int length) {
+            return line.length >= length ? line : Arrays.copyOf(line, Math.max(length, line.length * 2));
+        }
+
+        @Override
+        public LongWritable getCurrentKey() {
+            return key;
+        }
+
+        @Override
+        public Text getCurrentValue() {
+            return value;
+        }
+
+        @Override
+        public float getProgress() {
+            if (end == start)
+                return 1.0f;
+            return Math.min(1.0f, (pos - start) / (float) (end - start));
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null)
+                in.close();
+        }
+    }
+
+    private static void writeVarint(DataOutputBuffer out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Convert every CSV file of a directory (or a single file) to the columnar layout.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage : hadoop jar EnedisBySector.jar EnedisColumnarFile input output [rows per block]");
+            System.exit(0);
+        }
+
+        Configuration conf = new Configuration();
+        Path input = new Path(args[0]);
+        Path output = new Path(args[1]);
+        int rows_per_block = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_ROWS_PER_BLOCK;
+
+        FileSystem in_fs = input.getFileSystem(conf);
+        FileSystem out_fs = output.getFileSystem(conf);
+        out_fs.mkdirs(output);
+
+        for (FileStatus file : in_fs.listStatus(input)) {
+            String name = file.getPath().getName();
+            if (file.isDirectory() || name.startsWith("_") || name.startsWith("."))
+                continue;
+
+            Path target = new Path(output, name + EXTENSION);
+            LineReader reader = new LineReader(in_fs.open(file.getPath()), conf);
+            Writer writer = new Writer(out_fs.create(target, true), rows_per_block);
+            Text line = new Text();
+            long lines = 0;
+            try {
+                while (reader.readLine(line) > 0) {
+                    writer.append(line);
+                    lines++;
+                }
+            } finally {
+                reader.close();
+                writer.close();
+            }
+            System.out.println(file.getPath() + " -> " + target + " (" + lines + " lines)");
+        }
+    }
+}
@@ -0,0 +1,593 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.mapred.LocalJobRunner;
+import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.lib.partition.TotalOrderPartitioner;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.NativeCodeLoader;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Helpers shared by the EnedisBySector and EnedisByConsumption drivers to chain their jobs.
+ */
+public class EnedisJobs {
+
+    /**
+     * Prefix of the per-stage reducer count, e.g. -D enedis.reduces.FirstRun=8.
+     * Stages without their own value use mapreduce.job.reduces (1 by default).
+     */
+    public static final String REDUCES_PREFIX = "enedis.reduces.";
+
+    public static final String PART_FILES = "part-*";
+
+    /** Part file of the outputs written by the drivers themselves, named like the one of a single reducer. */
+    public static final String PART_FILE = "part-r-00000";
+
+    /** If set, the raw mappers only keep the lines of this year. */
+    public static final String YEAR_PROPERTY = "enedis.year";
+
+    /** Prefix of the directories of the per-year partial aggregates, e.g. state/year=2017/sector. */
+    public static final String YEAR_PREFIX = "year=";
+
+    /** "range" (default) to partition the GroupKey jobs by sampled ranges of keys, "hash" for the HashPartitioner. */
+    public static final String PARTITIONER_PROPERTY = "enedis.partitioner";
+
+    /** Number of input records read to choose the ranges of the reducers. */
+    public static final String SAMPLES_PROPERTY = "enedis.partitioner.samples";
+    public static final int DEFAULT_SAMPLES = 10000;
+
+    /** Maximum number of input splits the samples are read from. */
+    public static final int SAMPLED_SPLITS = 10;
+
+    /**
+     * Codecs of the map outputs and of the SequenceFile outputs of the stages, by Hadoop codec name or alias
+     * (e.g. snappy, lz4, zstd, gzip, default) or "none". A stage can have its own codec, e.g.
+     * -D enedis.codec.map.FirstRun=lz4, otherwise it uses enedis.codec.map (--map-codec option of the drivers).
+     * Without any value, the Hadoop settings are left as they are (no compression by default).
+     */
+    public static final String MAP_CODEC_PROPERTY = "enedis.codec.map";
+    public static final String OUTPUT_CODEC_PROPERTY = "enedis.codec.output";
+    public static final String NO_CODEC = "none";
+
+    /** Number of map and reduce tasks run at a time by the local runner, set by the --threads option of the drivers. */
+    public static final String THREADS_PROPERTY = "enedis.threads";
+
+    /** Stages keyed by GroupKey, whose part files follow each other in key order whatever their number of reducers. */
+    private static final String[] RANGE_STAGES = {"FirstRun", "MergeRun", "YearRun"};
+
+    /**
+     * Counters of the mappers reading the dataset and of the final reducers, on top of the Hadoop ones.
+     */
+    public enum Records {
+        /** lines read by a raw mapper, and their size */
+        LINES, LINE_BYTES,
+        /** lines ignored because of --year, or because the commune has no residential site */
+        OTHER_YEAR, NO_SITES,
+        /** lines ignored because of --filter-years or --filter-departments */
+        FILTERED,
+        /** lines with missing or non numeric fields, written to the quarantine output */
+        MALFORMED,
+        /** partial aggregates written by the in-mapper combiners */
+        PARTIALS,
+        /** lines of the final reports, named outputs included */
+        REPORT_LINES
+    }
+
+    /** Named output of the lines rejected by the raw mappers, written in the quarantine directory of the job output. */
+    public static final String QUARANTINE_OUTPUT = "quarantine";
+
+    /**
+     * Lines of the dataset which a raw mapper cannot parse. Instead of failing the task, which would
+     * be retried on the same line, the mapper skips them and writes them to the quarantine directory
+     * of its output (e.g. sector-output/quarantine/part-m-00000), each one after its reason and column,
+     * e.g. "NOT_A_NUMBER 17". The lines are also counted per reason.
+     */
+    public static class Quarantine {
+
+        public enum Reason {
+            /** fewer columns than needed */
+            SHORT_ROW,
+            /** a needed column is empty */
+            EMPTY_FIELD,
+            /** a needed column is not a number, e.g. "NA" */
+            NOT_A_NUMBER
+        }
+
+        private final TaskInputOutputContext<?,?,?,?> context;
+        private final MultipleOutputs<?,?> outputs;
+        private final boolean[] numeric;
+        private final Counter malformed;
+        private final Text reason = new Text();
+
+        /**
+         * @param context: context of the mapper
+         * @param numeric_columns: numeric columns parsed by the mapper, e.g. "0,12,15-23"
+         */
+        public <K,V> Quarantine(TaskInputOutputContext<?,?,K,V> context, String numeric_columns) {
+            this.context = context;
+            this.outputs = new MultipleOutputs<K,V>(context);
+            this.numeric = EnedisColumnarFile.parseColumns(numeric_columns);
+            this.malformed = context.getCounter(Records.MALFORMED);
+        }
+
+        /**
+         * Find the first needed column of a line which cannot be parsed, count the line and write it
+         * to the quarantine output.
+         *
+         * @param cols: the line, as read by the mapper
+         * @param line: the line itself
+         */
+        public void reject(FieldTokenizer cols, Text line) throws IOException, InterruptedException {
+            Reason cause = Reason.NOT_A_NUMBER;
+            int column = -1;
+            for (int c = 0; c < numeric.length && column < 0; c++) {
+                if (!numeric[c])
+                    continue;
+                if (c >= cols.size()) {
+                    cause = Reason.SHORT_ROW;
+                    column = c;
+                } else if (cols.isEmpty(c)) {
+                    cause = Reason.EMPTY_FIELD;
+                    column = c;
+                } else {
+                    try {
+                        if (c == GroupKey.Dimension.YEAR.getColumn())
+                            cols.getInt(c);
+                        else
+                            cols.getFloat(c);
+                    } catch (NumberFormatException e) {
+                        column = c;
+                    }
+                }
+            }
+            malformed.increment(1);
+            context.getCounter(cause).increment(1);
+            reason.set(cause + " " + column);
+            outputs.write(QUARANTINE_OUTPUT, reason, line, QUARANTINE_OUTPUT + "/part");
+        }
+
+        public void close() throws IOException, InterruptedException {
+            outputs.close();
+        }
+    }
+
+    /** Group of the counters of the SampledTimers. */
+    public static final String TIMERS_GROUP = "Sampled timers";
+
+    /**
+     * Time of a function of the hot path. Only one call out of SAMPLING is timed, to keep the cost
+     * of System.nanoTime off the other records; the timed calls and their total time are added to the
+     * counters "<name> calls" and "<name> ns" of the task when it ends, so their ratio is the mean time of a call.
+     */
+    public static class SampledTimer {
+
+        public static final int SAMPLING = 64;
+
+        private final String name;
+        private long calls;
+        private long timed_calls;
+        private long nanos;
+        private long start;
+
+        public SampledTimer(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return true if the call is timed, in which case stop() must be called after it
+         */
+        public boolean start() {
+            if (calls++ % SAMPLING != 0)
+                return false;
+            start = System.nanoTime();
+            return true;
+        }
+
+        public void stop() {
+            nanos += System.nanoTime() - start;
+            timed_calls++;
+        }
+
+        public void flush(TaskAttemptContext context) {
+            context.getCounter(TIMERS_GROUP, name + " calls").increment(timed_calls);
+            context.getCounter(TIMERS_GROUP, name + " ns").increment(nanos);
+            timed_calls = 0;
+            nanos = 0;
+        }
+    }
+
+    /**
+     * Set the number of reducers of a job from enedis.reduces.<job name>.
+     */
+    public static void setNumReduceTasks(Job job) {
+        Configuration conf = job.getConfiguration();
+        job.setNumReduceTasks(conf.getInt(REDUCES_PREFIX + job.getJobName(), job.getNumReduceTasks()));
+    }
+
+    /**
+     * Set the compression of the map output and of the output of a job from enedis.codec.map.<job name>
+     * and enedis.codec.output.<job name>, or enedis.codec.map and enedis.codec.output. Only the
+     * SequenceFile outputs are compressed, by blocks, so that the text reports stay readable as they are.
+     * Named text outputs of a compressed stage, such as the quarantine, are compressed as well.
+     *
+     * Call it once the output format of the job is set.
+     *
+     * @throws IOException if a codec is unknown, or needs a native library which is not loaded
+     */
+    public static void setCompression(Job job) throws IOException, ClassNotFoundException {
+        Configuration conf = job.getConfiguration();
+
+        String map_codec = getStageValue(conf, MAP_CODEC_PROPERTY, job.getJobName());
+        if (map_codec != null) {
+            boolean compress = !map_codec.equalsIgnoreCase(NO_CODEC);
+            conf.setBoolean(MRJobConfig.MAP_OUTPUT_COMPRESS, compress);
+            if (compress)
+                conf.setClass(MRJobConfig.MAP_OUTPUT_COMPRESS_CODEC, getCodec(conf, map_codec).getClass(),
+                        CompressionCodec.class);
+        }
+
+        String output_codec = getStageValue(conf, OUTPUT_CODEC_PROPERTY, job.getJobName());
+        if (output_codec != null && SequenceFileOutputFormat.class.isAssignableFrom(job.getOutputFormatClass())) {
+            boolean compress = !output_codec.equalsIgnoreCase(NO_CODEC);
+            FileOutputFormat.setCompressOutput(job, compress);
+            if (compress) {
+                FileOutputFormat.setOutputCompressorClass(job, getSequenceFileCodec(conf, output_codec).getClass());
+                SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+            }
+        }
+    }
+
+    private static String getStageValue(Configuration conf, String property, String stage) {
+        return conf.get(property + "." + stage, conf.get(property));
+    }
+
+    /**
+     * @param name: Hadoop codec name or alias, e.g. "snappy", or "zstd" for the zstandard codec
+     * @throws IOException if the codec is unknown, or needs a native library which is not loaded
+     */
+    public static CompressionCodec getCodec(Configuration conf, String name) throws IOException {
+        String alias = name.equalsIgnoreCase("zstd") ? "zstandard" : name;
+        CompressionCodec codec = new CompressionCodecFactory(conf).getCodecByName(alias);
+        if (codec == null)
+            throw new IOException("Unknown compression codec " + name);
+        try {
+            // the codecs without a pure Java implementation fail here rather than in the tasks
+            CodecPool.returnCompressor(CodecPool.getCompressor(codec, conf));
+        } catch (RuntimeException | UnsatisfiedLinkError e) {
+            throw new IOException("Compression codec " + name + " is not available: " + e.getMessage(), e);
+        }
+        return codec;
+    }
+
+    /**
+     * Same as getCodec, for a codec which can compress a SequenceFile: the gzip codec only can with the
+     * native library, the default codec writes the same zlib format without it.
+     */
+    public static CompressionCodec getSequenceFileCodec(Configuration conf, String name) throws IOException {
+        CompressionCodec codec = getCodec(conf, name);
+        if (codec instanceof GzipCodec && !NativeCodeLoader.isNativeCodeLoaded())
+            throw new IOException("Compression codec " + name + " needs the native library for SequenceFiles, use default");
+        return codec;
+    }
+
+    /**
+     * Let the local runner run *threads* map tasks and *threads* reduce tasks at a time, instead of one after
+     * the other. The framework is left as configured: on a cluster, only the splits and reducers change.
+     * The inputs are split in at least *threads* byte ranges (see setSplitSize), and the stages keyed by
+     * GroupKey get one reducer per thread unless enedis.reduces.<job name> is set. The other stages keep
+     * their reducers, so that their reports are not split in several part files.
+     */
+    public static void setLocalThreads(Configuration conf, int threads) {
+        setLocalThreads(conf, threads, RANGE_STAGES);
+    }
+
+    /**
+     * Same as setLocalThreads, with one reducer per thread for *stages* only.
+     */
+    public static void setLocalThreads(Configuration conf, int threads, String... stages) {
+        conf.setInt(THREADS_PROPERTY, threads);
+        conf.setInt(LocalJobRunner.LOCAL_MAX_MAPS, threads);
+        conf.setInt(LocalJobRunner.LOCAL_MAX_REDUCES, threads);
+        for (String stage : stages) {
+            if (conf.get(REDUCES_PREFIX + stage) == null)
+                conf.setInt(REDUCES_PREFIX + stage, threads);
+        }
+    }
+
+    /**
+     * With enedis.threads, limit the splits of *job* to the size of its inputs divided by the number of threads,
+     * so that every thread gets a map task even if the input is a single file smaller than a block.
+     * Called each time an input is added.
+     */
+    private static void setSplitSize(Job job) throws IOException {
+        Configuration conf = job.getConfiguration();
+        int threads = conf.getInt(THREADS_PROPERTY, 1);
+        if (threads < 2)
+            return;
+        long size = 0;
+        for (Path input : FileInputFormat.getInputPaths(job)) {
+            FileSystem fs = input.getFileSystem(conf);
+            FileStatus[] statuses = fs.globStatus(input);
+            if (statuses == null)
+                continue;
+            for (FileStatus status : statuses)
+                size += fs.getContentSummary(status.getPath()).getLength();
+        }
+        FileInputFormat.setMaxInputSplitSize(job, Math.max(1, (size + threads - 1) / threads));
+    }
+
+    /**
+     * Read the raw dataset, either from the semicolon separated CSV or, with *columnar*, from its
+     * EnedisColumnarFile copy, decoding only the given columns. The quarantine output of the
+     * malformed lines is declared as well. With a filter or enedis.year, the zones of the files indexed
+     * by EnedisZoneMap which cannot hold any line of the run are not read.
+     *
+     * @param job: a job whose mapper reads lines of the dataset
+     * @param input: CSV or columnar input path
+     * @param columnar: true if the input was converted with EnedisColumnarFile
+     * @param columns: columns used by the mapper, e.g. "0,7,12,15-23"
+     */
+    public static void setRawInput(Job job, Path input, boolean columnar, String columns) throws IOException {
+        if (columnar) {
+            job.setInputFormatClass(EnedisZoneMap.ZoneColumnarInputFormat.class);
+            if (EnedisZoneMap.Filter.get(job.getConfiguration()) != null)
+                columns += "," + EnedisZoneMap.COLUMNS;
+            EnedisColumnarFile.ColumnarInputFormat.setColumns(job, columns);
+        } else {
+            job.setInputFormatClass(EnedisZoneMap.ZoneTextInputFormat.class);
+        }
+        FileInputFormat.addInputPath(job, input);
+        setSplitSize(job);
+        MultipleOutputs.addNamedOutput(job, QUARANTINE_OUTPUT, TextOutputFormat.class, Text.class, Text.class);
+    }
+
+    /**
+     * Send contiguous ranges of GroupKey to the reducers of *job* with a TotalOrderPartitioner, instead of
+     * hashing the keys: the part files are sorted one after the other, and a department or commune with
+     * many lines weighs on the ranges as much as it does on the reducers. The bounds of the ranges are
+     * chosen from the keys of a sample of the input, read from the first records of up to SAMPLED_SPLITS
+     * splits like InputSampler.SplitSampler does, and written next to the output of the job.
+     * If the sample has fewer distinct keys than the reducers, the number of reducers is lowered.
+     *
+     * Call it once the input, the output, the map output key class and the number of reducers are set.
+     *
+     * @param job: a job whose map output keys are GroupKey
+     * @param groupings: groupings of the keys the mapper builds from each line of the dataset,
+     *                   or null if the input is a SequenceFile of GroupKey keys which the mapper keeps
+     */
+    public static void setRangePartitioner(Job job, int[] groupings) throws Exception {
+        Configuration conf = job.getConfiguration();
+        int reduces = job.getNumReduceTasks();
+        if (reduces < 2 || !conf.get(PARTITIONER_PROPERTY, "range").equals("range"))
+            return;
+
+        List<GroupKey> samples = sampleKeys(job, groupings, conf.getInt(SAMPLES_PROPERTY, DEFAULT_SAMPLES));
+        Collections.sort(samples);
+
+        // bounds at regular ranks of the sample, each one strictly above the previous one
+        List<GroupKey> bounds = new ArrayList<GroupKey>();
+        int rank = 0;
+        for (int r = 1; r < reduces; r++) {
+            rank = Math.max(rank, (int) ((long) samples.size() * r / reduces));
+            while (rank < samples.size() && !bounds.isEmpty()
+                    && samples.get(rank).compareTo(bounds.get(bounds.size() - 1)) <= 0)
+                rank++;
+            if (rank >= samples.size())
+                break;
+            bounds.add(samples.get(rank));
+        }
+        if (bounds.size() + 1 < reduces) {
+            System.err.println("Only " + samples.size() + " sampled keys with " + (bounds.size() + 1)
+                    + " ranges for " + job.getJobName() + ", using " + (bounds.size() + 1) + " reducers");
+            job.setNumReduceTasks(bounds.size() + 1);
+        }
+        if (bounds.isEmpty())
+            return;
+
+        Path output = FileOutputFormat.getOutputPath(job);
+        Path file = new Path(output.getParent(), "_" + output.getName() + ".partitions");
+        FileSystem fs = file.getFileSystem(conf);
+        SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(file),
+                SequenceFile.Writer.keyClass(GroupKey.class), SequenceFile.Writer.valueClass(NullWritable.class));
+        try {
+            for (GroupKey bound : bounds)
+                writer.append(bound, NullWritable.get());
+        } finally {
+            writer.close();
+        }
+        // only needed while the job runs, removed when the driver closes its file systems
+        fs.deleteOnExit(file);
+
+        TotalOrderPartitioner.setPartitionFile(conf, file);
+        job.setPartitionerClass(TotalOrderPartitioner.class);
+    }
+
+    private static List<GroupKey> sampleKeys(Job job, int[] groupings, int count) throws Exception {
+        Configuration conf = job.getConfiguration();
+        InputFormat<?,?> format = ReflectionUtils.newInstance(job.getInputFormatClass(), conf);
+        List<InputSplit> splits = format.getSplits(job);
+        int sampled_splits = Math.min(splits.size(), SAMPLED_SPLITS);
+        int year = conf.getInt(YEAR_PROPERTY, -1);
+        EnedisZoneMap.Filter filter = EnedisZoneMap.Filter.get(conf);
+        FieldTokenizer cols = new FieldTokenizer(';');
+        TaskAttemptContext context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+
+        List<GroupKey> samples = new ArrayList<GroupKey>();
+        for (int s = 0; s < sampled_splits; s++) {
+            InputSplit split = splits.get((int) ((long) splits.size() * s / sampled_splits));
+            RecordReader<?,?> reader = format.createRecordReader(split, context);
+            try {
+                reader.initialize(split, context);
+                for (int records = 0; records < count / sampled_splits && reader.nextKeyValue(); records++) {
+                    if (groupings == null) {
+                        GroupKey key = new GroupKey();
+                        key.set((GroupKey) reader.getCurrentKey());
+                        samples.add(key);
+                        continue;
+                    }
+                    cols.reset((Text) reader.getCurrentValue());
+                    try {
+                        if (year >= 0 && cols.getInt(0) != year)
+                            continue;
+                        if (filter != null && !filter.accept(cols))
+                            continue;
+                        for (int grouping : groupings) {
+                            GroupKey key = new GroupKey();
+                            key.set(grouping, cols);
+                            samples.add(key);
+                        }
+                    } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                        // malformed line, quarantined by the mapper
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Use every part file written by a previous stage as input of *job*, whatever the number
+     * of reducers of that stage. _SUCCESS and the side outputs of the stage are ignored.
+     *
+     * @param job: the next job
+     * @param output: output directory of the previous stage
+     */
+    public static void addStageInput(Job job, Path output) throws IOException {
+        FileInputFormat.addInputPath(job, new Path(output, PART_FILES));
+        setSplitSize(job);
+    }
+
+    /**
+     * Directory of the partial aggregates of one year and one analysis in a state directory.
+     */
+    public static Path getYearPath(Path state, int year, String analysis) {
+        return new Path(new Path(state, YEAR_PREFIX + year), analysis);
+    }
+
+    /**
+     * Use the stored partial aggregates of some years as input of *job*.
+     *
+     * @param job: the job merging the years
+     * @param state: state directory
+     * @param analysis: "sector" or "conso"
+     * @param years: comma separated years, or null for every stored year
+     */
+    public static void addStateInput(Job job, Path state, String analysis, String years) throws IOException {
+        if (years == null) {
+            addStageInput(job, new Path(new Path(state, YEAR_PREFIX + "*"), analysis));
+        } else {
+            for (String year : years.split(","))
+                addStageInput(job, getYearPath(state, Integer.parseInt(year.trim()), analysis));
+        }
+    }
+
+    /**
+     * Replace the stored partial aggregates of a year by the output of a job which completed.
+     * The job writes next to the partials, so that a failed run leaves the previous ones untouched.
+     *
+     * @param conf: configuration of the driver
+     * @param output: output directory of the job
+     * @param partial: directory given by getYearPath
+     */
+    public static void commitYear(Configuration conf, Path output, Path partial) throws IOException {
+        FileSystem fs = partial.getFileSystem(conf);
+        if (fs.exists(partial) && !fs.delete(partial, true))
+            throw new IOException("Cannot remove the previous partial aggregates in " + partial);
+        if (!fs.rename(output, partial))
+            throw new IOException("Cannot move " + output + " to " + partial);
+    }
+
+    /**
+     * @return the indexes of *labels* in the byte order of the labels as Text, the order of the lines of
+     *         a report keyed by its labels
+     */
+    public static int[] getLabelOrder(String[] labels) {
+        Integer[] order = new Integer[labels.length];
+        for (int i = 0; i < labels.length; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.comparing((Integer i) -> new Text(labels[i])));
+        int[] indexes = new int[labels.length];
+        for (int i = 0; i < labels.length; i++)
+            indexes[i] = order[i];
+        return indexes;
+    }
+
+    /**
+     * List the part files of a stage output directory, in reducer order.
+     */
+    public static List<Path> listParts(Configuration conf, Path output) throws IOException {
+        FileSystem fs = output.getFileSystem(conf);
+        FileStatus[] statuses = fs.globStatus(new Path(output, PART_FILES));
+        List<Path> parts = new ArrayList<Path>();
+        if (statuses == null)
+            throw new IOException("No output found in " + output);
+        for (FileStatus status : statuses)
+            parts.add(status.getPath());
+        parts.sort(Comparator.comparing(Path::getName));
+        return parts;
+    }
+
+    /**
+     * Read the lines of every part file of a text stage output, through the Hadoop FileSystem
+     * so that it works on HDFS as well as on the local file system.
+     */
+    public static List<String> readLines(Configuration conf, Path output) throws IOException {
+        FileSystem fs = output.getFileSystem(conf);
+        List<String> lines = new ArrayList<String>();
+        for (Path part : listParts(conf, output)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(part), StandardCharsets.UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null)
+                    lines.add(line);
+            } finally {
+                reader.close();
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Write *lines* to output/part-r-00000, like TextOutputFormat, through the Hadoop FileSystem.
+     *
+     * @throws IOException if the output directory already exists
+     */
+    public static void writeLines(Configuration conf, Path output, List<String> lines) throws IOException {
+        FileSystem fs = output.getFileSystem(conf);
+        if (fs.exists(output))
+            throw new IOException("Output directory " + output + " already exists");
+        Writer writer = new OutputStreamWriter(fs.create(new Path(output, PART_FILE)), StandardCharsets.UTF_8);
+        try {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
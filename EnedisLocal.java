@@ -0,0 +1,600 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+/**
+ * Run the EnedisBySector and EnedisByConsumption analyses in memory, without any MapReduce job.
+ *
+ * The dataset is loaded once into one primitive array per used column (departments and communes are
+ * dictionary encoded, in the byte order of their codes, like the Text keys of the jobs). The per-line
+ * and per-commune computations then run in parallel on these arrays, with the same functions as the
+ * mappers and reducers, and the final outputs are written as the part-r-00000 file of each job,
+ * with the same content as the Hadoop run with one reducer.
+ *
+ * Usage : hadoop jar EnedisLocal.jar EnedisLocal [-D enedis.quantile.k=200] [--threads N] input sector-output conso-output
+ */
+public class EnedisLocal {
+
+    /** Columns holding float values read by the sector analysis. */
+    private static final int[] SECTOR_COLUMNS = {12, 15, 16, 17, 18, 19, 20, 21, 22, 23};
+
+    /** Number of Enedis sites, the only column Mapper1 parses for lines without sites. */
+    private static final int SITES_COLUMN = 10;
+
+    /** Columns holding float values read by Mapper1 for lines with Enedis sites. */
+    private static final int[] CONSUMPTION_COLUMNS = {11, 24, 25,
+            27, 28, 29, 30, 31, 32, 33, 34, 35, 36, 37, 38, 39, 40};
+
+    /**
+     * The used columns of the dataset, one value per line.
+     */
+    public static class Dataset {
+
+        private int size;
+        private int[] year;
+        private int[] department;
+        private int[] commune;
+        private Text[] departments;
+        private Text[] communes;
+        private final float[][] columns = new float[41][];
+        // lines which the mappers of each analysis would send to the quarantine
+        private boolean[] sector_malformed;
+        private boolean[] conso_malformed;
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return the number of lines skipped by at least one of the analyses because they cannot be parsed
+         */
+        public int malformed() {
+            int count = 0;
+            for (int l = 0; l < size; l++) {
+                if (sector_malformed[l] || conso_malformed[l])
+                    count++;
+            }
+            return count;
+        }
+
+        public float[] column(int column) {
+            return columns[column];
+        }
+
+        /**
+         * Load every file of *input* (a file or a directory, hidden files excepted) with the given
+         * parallelism. Lines are split exactly like TextInputFormat does.
+         *
+         * Files of the local file system are cut into chunks of whole lines, one or more per thread, which are
+         * memory-mapped, copied and split into lines in parallel. Other files are read as a single chunk.
+         */
+        public static Dataset load(Configuration conf, Path input, ForkJoinPool pool) throws Exception {
+            FileSystem fs = input.getFileSystem(conf);
+            final List<Chunk> chunks = new ArrayList<Chunk>();
+            FileStatus[] statuses = fs.listStatus(input);
+            Arrays.sort(statuses);
+            for (FileStatus status : statuses) {
+                String name = status.getPath().getName();
+                if (status.isDirectory() || name.startsWith("_") || name.startsWith("."))
+                    continue;
+                if (fs instanceof LocalFileSystem) {
+                    chunks.addAll(Chunk.split(((LocalFileSystem) fs).pathToFile(status.getPath()), pool.getParallelism()));
+                } else {
+                    Chunk chunk = new Chunk();
+                    chunk.bytes = readFully(fs, status);
+                    chunks.add(chunk);
+                }
+            }
+            pool.submit(() -> chunks.parallelStream().forEach(Chunk::load)).get();
+
+            // line boundaries, without the end of line characters
+            int lines = 0;
+            for (Chunk chunk : chunks)
+                lines += chunk.lines;
+            int[] line_chunk = new int[lines];
+            int[] line_start = new int[lines];
+            int[] line_length = new int[lines];
+            int first = 0;
+            for (int c = 0; c < chunks.size(); c++) {
+                Chunk chunk = chunks.get(c);
+                Arrays.fill(line_chunk, first, first + chunk.lines, c);
+                System.arraycopy(chunk.line_start, 0, line_start, first, chunk.lines);
+                System.arraycopy(chunk.line_length, 0, line_length, first, chunk.lines);
+                first += chunk.lines;
+            }
+
+            final Dataset dataset = new Dataset();
+            final int size = lines;
+            dataset.size = size;
+            dataset.year = new int[size];
+            dataset.sector_malformed = new boolean[size];
+            dataset.conso_malformed = new boolean[size];
+            dataset.columns[SITES_COLUMN] = new float[size];
+            for (int column : SECTOR_COLUMNS)
+                dataset.columns[column] = new float[size];
+            for (int column : CONSUMPTION_COLUMNS)
+                dataset.columns[column] = new float[size];
+
+            final byte[][] file_bytes = new byte[chunks.size()][];
+            for (int c = 0; c < chunks.size(); c++)
+                file_bytes[c] = chunks.get(c).bytes;
+            final int[] files_of_lines = line_chunk;
+            final int[] starts = line_start;
+            final int[] lengths = line_length;
+            final int[] department_start = new int[size];
+            final int[] department_length = new int[size];
+            final int[] commune_start = new int[size];
+            final int[] commune_length = new int[size];
+            final ThreadLocal<FieldTokenizer> tokenizers = ThreadLocal.withInitial(() -> new FieldTokenizer(';'));
+
+            pool.submit(() -> IntStream.range(0, size).parallel().forEach(l -> {
+                FieldTokenizer cols = tokenizers.get();
+                cols.reset(file_bytes[files_of_lines[l]], starts[l], lengths[l]);
+                // the codes of lines too short to hold them stay empty, these lines are malformed anyway
+                if (cols.size() > 7) {
+                    department_start[l] = cols.getStart(7);
+                    department_length[l] = cols.getLength(7);
+                }
+                if (cols.size() > 2) {
+                    commune_start[l] = cols.getStart(2);
+                    commune_length[l] = cols.getLength(2);
+                }
+
+                // same fields, parsed in the same cases, as PerDepartmentMapper and Mapper1
+                try {
+                    for (int column : SECTOR_COLUMNS)
+                        dataset.columns[column][l] = cols.getFloat(column);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    dataset.sector_malformed[l] = true;
+                }
+                try {
+                    float sites = cols.getFloat(SITES_COLUMN);
+                    dataset.columns[SITES_COLUMN][l] = sites;
+                    if (sites != 0.0) {
+                        dataset.year[l] = cols.getInt(0);
+                        for (int column : CONSUMPTION_COLUMNS)
+                            dataset.columns[column][l] = cols.getFloat(column);
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    dataset.conso_malformed[l] = true;
+                }
+            })).get();
+
+            dataset.departments = encode(file_bytes, files_of_lines, department_start, department_length,
+                    dataset.department = new int[size]);
+            dataset.communes = encode(file_bytes, files_of_lines, commune_start, commune_length,
+                    dataset.commune = new int[size]);
+            return dataset;
+        }
+
+        /** Minimum size of the chunks of a local file. */
+        private static final long MIN_CHUNK_SIZE = 1 << 20;
+
+        /** Maximum size of a chunk, which is mapped and copied as a single array. */
+        private static final long MAX_CHUNK_SIZE = 1 << 30;
+
+        /**
+         * Whole lines of a file, which are loaded into an array and split into lines by one thread.
+         */
+        private static class Chunk {
+
+            File file;
+            long offset;
+            long length;
+            byte[] bytes;
+            int lines;
+            int[] line_start = new int[1024];
+            int[] line_length = new int[1024];
+
+            /**
+             * Cut a local file into about 4 chunks per thread, each one starting after an end of line.
+             */
+            static List<Chunk> split(File file, int threads) throws IOException {
+                List<Chunk> chunks = new ArrayList<Chunk>();
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    long count = Math.max(1, Math.min(threads * 4L, size / MIN_CHUNK_SIZE));
+                    count = Math.max(count, size / MAX_CHUNK_SIZE + 1);
+                    long start = 0;
+                    for (long c = 1; c <= count && start < size; c++) {
+                        long end = c == count ? size : nextLineStart(channel, Math.max(start, size * c / count), size);
+                        if (end - start > Integer.MAX_VALUE)
+                            throw new IOException("Line too long in " + file);
+                        if (end == start)
+                            continue;
+                        Chunk chunk = new Chunk();
+                        chunk.file = file;
+                        chunk.offset = start;
+                        chunk.length = end - start;
+                        chunks.add(chunk);
+                        start = end;
+                    }
+                }
+                return chunks;
+            }
+
+            /**
+             * @return the position after the first end of line ("\n", "\r" or "\r\n") at or after *position*
+             */
+            private static long nextLineStart(FileChannel channel, long position, long size) throws IOException {
+                ByteBuffer window = ByteBuffer.allocate(64 * 1024);
+                boolean cr = false;
+                while (position < size) {
+                    window.clear();
+                    int read = channel.read(window, position);
+                    if (read <= 0)
+                        break;
+                    for (int i = 0; i < read; i++) {
+                        byte b = window.get(i);
+                        if (cr)
+                            return b == '\n' ? position + i + 1 : position + i;
+                        if (b == '\n')
+                            return position + i + 1;
+                        cr = b == '\r';
+                    }
+                    position += read;
+                }
+                return size;
+            }
+
+            /**
+             * Copy the chunk from its memory-mapped region, if it is not read yet, and find its lines.
+             */
+            void load() {
+                if (bytes == null) {
+                    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                        bytes = new byte[(int) length];
+                        buffer.get(bytes);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+
+                int start = 0;
+                while (start < bytes.length) {
+                    int end = start;
+                    while (end < bytes.length && bytes[end] != '\n' && bytes[end] != '\r')
+                        end++;
+                    if (lines == line_start.length) {
+                        line_start = Arrays.copyOf(line_start, lines * 2);
+                        line_length = Arrays.copyOf(line_length, lines * 2);
+                    }
+                    line_start[lines] = start;
+                    line_length[lines] = end - start;
+                    lines++;
+                    if (end + 1 < bytes.length && bytes[end] == '\r' && bytes[end + 1] == '\n')
+                        end++;
+                    start = end + 1;
+                }
+            }
+        }
+
+        private static byte[] readFully(FileSystem fs, FileStatus status) throws IOException {
+            if (status.getLen() > Integer.MAX_VALUE)
+                throw new IOException(status.getPath() + " is too large to be loaded in memory");
+            byte[] bytes = new byte[(int) status.getLen()];
+            InputStream in = fs.open(status.getPath());
+            try {
+                IOUtils.readFully(in, bytes, 0, bytes.length);
+            } finally {
+                in.close();
+            }
+            return bytes;
+        }
+
+        /**
+         * Replace a text field by its index in the sorted dictionary of its values.
+         *
+         * @return the dictionary, in the order of Text.compareTo
+         */
+        private static Text[] encode(byte[][] file_bytes, int[] files_of_lines, int[] starts, int[] lengths,
+                                     int[] ids) {
+            Map<Text,Integer> dictionary = new HashMap<Text,Integer>();
+            List<Text> values = new ArrayList<Text>();
+            Text field = new Text();
+            for (int l = 0; l < ids.length; l++) {
+                field.set(file_bytes[files_of_lines[l]], starts[l], lengths[l]);
+                Integer id = dictionary.get(field);
+                if (id == null) {
+                    id = values.size();
+                    Text value = new Text(field);
+                    dictionary.put(value, id);
+                    values.add(value);
+                }
+                ids[l] = id;
+            }
+
+            Text[] sorted = values.toArray(new Text[0]);
+            Arrays.sort(sorted);
+            int[] ranks = new int[sorted.length];
+            for (int rank = 0; rank < sorted.length; rank++)
+                ranks[dictionary.get(sorted[rank])] = rank;
+            for (int l = 0; l < ids.length; l++)
+                ids[l] = ranks[ids[l]];
+            return sorted;
+        }
+    }
+
+    /**
+     * Same result as EnedisBySector: for each sector, the departments with the most communes
+     * where this sector has the biggest average consumption per site (enedis.sector.topk).
+     *
+     * @return the lines of the final output
+     */
+    public static List<String> sectorAnalysis(Configuration conf, final Dataset dataset, ForkJoinPool pool) throws Exception {
+        final int size = dataset.size();
+        final int[] max_sector = new int[size];
+        final float[] c12 = dataset.column(12), c15 = dataset.column(15),
+                c16 = dataset.column(16), c17 = dataset.column(17), c18 = dataset.column(18), c19 = dataset.column(19),
+                c20 = dataset.column(20), c21 = dataset.column(21), c22 = dataset.column(22), c23 = dataset.column(23);
+        final ThreadLocal<float[]> avgs = ThreadLocal.withInitial(() -> new float[EnedisBySector.SECTORLABELS.length]);
+
+        pool.submit(() -> IntStream.range(0, size).parallel().forEach(l -> {
+            if (dataset.sector_malformed[l]) {
+                max_sector[l] = -1;
+                return;
+            }
+            float[] line_avgs = EnedisBySector.computeSectorAvgs(c12[l], c15[l], c16[l], c17[l], c18[l], c19[l],
+                    c20[l], c21[l], c22[l], c23[l], avgs.get());
+            max_sector[l] = EnedisBySector.getMaxSector(line_avgs);
+        })).get();
+
+        EnedisBySector.SectorCounts[] counts_per_department = new EnedisBySector.SectorCounts[dataset.departments.length];
+        for (int d = 0; d < counts_per_department.length; d++)
+            counts_per_department[d] = new EnedisBySector.SectorCounts();
+        for (int l = 0; l < size; l++) {
+            if (max_sector[l] >= 0)
+                counts_per_department[dataset.department[l]].increment(max_sector[l]);
+        }
+
+        // top departments of each sector, like ExtractMaxSectorMapper and ParSectorDepartmentWithMaxCountReducer
+        int[] top_sectors = new int[EnedisBySector.SECTORLABELS.length];
+        EnedisBySector.TopK[] top = new EnedisBySector.TopK[EnedisBySector.SECTORLABELS.length];
+        for (int sector = 0; sector < top.length; sector++)
+            top[sector] = new EnedisBySector.TopK(conf.getInt(EnedisBySector.TOPK_PROPERTY, 1));
+        int sectors_k = conf.getInt(EnedisBySector.TOPK_SECTORS_PROPERTY, 1);
+        for (int d = 0; d < counts_per_department.length; d++) {
+            int sectors = EnedisBySector.getTopSectors(counts_per_department[d], sectors_k, top_sectors);
+            for (int i = 0; i < sectors; i++)
+                top[top_sectors[i]].offer(dataset.departments[d], counts_per_department[d].get(top_sectors[i]), 0);
+        }
+
+        List<String> lines = new ArrayList<String>();
+        for (int sector : EnedisBySector.SECTOR_ORDER) {
+            if (!top[sector].isEmpty())
+                lines.add(EnedisBySector.SECTORLABELS[sector] + "\t" + top[sector].format(GroupKey.Dimension.DEPARTMENT));
+        }
+        return lines;
+    }
+
+    /**
+     * Averages of EnedisByConsumption.Reduce1, one value per commune of the dataset.
+     * Communes without any line with Enedis sites are not present.
+     */
+    public static class Communes {
+        boolean[] present;
+        float[] consumption;
+        float[] housing;
+        float[] heating;
+        float[] population;
+        byte[] surface;
+        byte[] residence;
+    }
+
+    /**
+     * Same computation as Mapper1 and Reduce1 of EnedisByConsumption, for all the communes in parallel.
+     */
+    public static Communes communeAverages(final Dataset dataset, ForkJoinPool pool) throws Exception {
+        final int size = dataset.size();
+        final int nb_communes = dataset.communes.length;
+        final float[] sites = dataset.column(10);
+
+        // lines of each commune, grouped by a counting sort on the commune index
+        final int[] offsets = new int[nb_communes + 1];
+        for (int l = 0; l < size; l++)
+            offsets[dataset.commune[l] + 1]++;
+        for (int c = 0; c < nb_communes; c++)
+            offsets[c + 1] += offsets[c];
+        final int[] lines = new int[size];
+        int[] next = Arrays.copyOf(offsets, nb_communes);
+        for (int l = 0; l < size; l++)
+            lines[next[dataset.commune[l]]++] = l;
+
+        final float[] c11 = dataset.column(11), c24 = dataset.column(24), c25 = dataset.column(25),
+                c40 = dataset.column(40);
+        final float[][] c = dataset.columns;
+
+        final Communes communes = new Communes();
+        communes.present = new boolean[nb_communes];
+        communes.consumption = new float[nb_communes];
+        communes.housing = new float[nb_communes];
+        communes.heating = new float[nb_communes];
+        communes.population = new float[nb_communes];
+        communes.surface = new byte[nb_communes];
+        communes.residence = new byte[nb_communes];
+
+        final ThreadLocal<EnedisByConsumption.CommuneRecord> records =
+                ThreadLocal.withInitial(EnedisByConsumption.CommuneRecord::new);
+        final ThreadLocal<EnedisByConsumption.CommuneTotal> totals =
+                ThreadLocal.withInitial(EnedisByConsumption.CommuneTotal::new);
+
+        pool.submit(() -> IntStream.range(0, nb_communes).parallel().forEach(commune -> {
+            EnedisByConsumption.CommuneRecord value = records.get();
+            EnedisByConsumption.CommuneTotal total = totals.get();
+            total.clear();
+
+            for (int i = offsets[commune]; i < offsets[commune + 1]; i++) {
+                int l = lines[i];
+                if (sites[l] == 0.0 || dataset.conso_malformed[l])
+                    continue; //pas de sites ENEDIS, ou ligne invalide
+
+                int surface = EnedisByConsumption.maxSurfaceCategory(c[27][l],
+                        c[28][l] + c[29][l] + c[30][l] + c[31][l], c[32][l]);
+                int residence = EnedisByConsumption.maxResidenceCategory(c[33][l] + c[34][l] + c[35][l],
+                        c[36][l] + c[37][l] + c[38][l], c[39][l]);
+                value.set(dataset.year[l], c11[l] / sites[l], c25[l], c40[l], c24[l], surface, residence);
+                total.add(c11[l], sites[l], value);
+            }
+            if (total.getCount() == 0)
+                return;
+
+            EnedisByConsumption.CommuneRecord average = total.getAverage(value);
+            communes.present[commune] = true;
+            communes.consumption[commune] = average.getConsumption();
+            communes.housing[commune] = average.getHousing();
+            communes.heating[commune] = average.getHeating();
+            communes.population[commune] = average.getPopulation();
+            communes.surface[commune] = (byte) average.getSurface();
+            communes.residence[commune] = (byte) average.getResidence();
+        })).get();
+
+        return communes;
+    }
+
+    /**
+     * Same result as EnedisByConsumption.mergeMinMax with one reducer: the communes are added to the sketches
+     * in the order of their codes, as by Reduce1, then the sketch of each metric is merged by the driver.
+     *
+     * @return the lines of the min/max output, in the order of the metric names
+     */
+    public static List<String> minMaxAnalysis(Communes communes, Configuration conf) throws IOException {
+        int k = conf.getInt(QuantileSketch.K_PROPERTY, QuantileSketch.DEFAULT_K);
+        Map<String,QuantileSketch> sketches = new TreeMap<String,QuantileSketch>();
+        QuantileSketch conso_sketch = new QuantileSketch(k);
+        QuantileSketch housing_sketch = new QuantileSketch(k);
+        QuantileSketch heating_sketch = new QuantileSketch(k);
+        QuantileSketch population_sketch = new QuantileSketch(k);
+        sketches.put("conso", conso_sketch);
+        sketches.put("housing", housing_sketch);
+        sketches.put("heating", heating_sketch);
+        sketches.put("population", population_sketch);
+
+        for (int commune = 0; commune < communes.present.length; commune++) {
+            if (!communes.present[commune])
+                continue;
+            conso_sketch.update(communes.consumption[commune]);
+            housing_sketch.update(communes.housing[commune]);
+            heating_sketch.update(communes.heating[commune]);
+            population_sketch.update(communes.population[commune]);
+        }
+
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String,QuantileSketch> entry : sketches.entrySet()) {
+            QuantileSketch sketch = EnedisByConsumption.mergeSketches(Collections.singletonList(entry.getValue()), conf);
+            lines.add(entry.getKey() + "\t" + EnedisByConsumption.formatMinMax(conf, entry.getKey(), sketch));
+        }
+        return lines;
+    }
+
+    /**
+     * Same result as the last job of EnedisByConsumption.
+     *
+     * @param thresholds: thresholds read from the min/max lines
+     * @return the lines of the final output
+     */
+    public static List<String> categoriesAnalysis(Communes communes, EnedisByConsumption.Thresholds thresholds) {
+        String[] conso_labels = thresholds.getConsoLabels();
+        EnedisByConsumption.JointCounts[] tables = new EnedisByConsumption.JointCounts[conso_labels.length];
+        for (int i = 0; i < tables.length; i++) {
+            tables[i] = new EnedisByConsumption.JointCounts();
+            tables[i].reset(thresholds);
+        }
+
+        int[] communes_per_category = new int[tables.length];
+        EnedisByConsumption.CommuneCategories categories = new EnedisByConsumption.CommuneCategories();
+        for (int commune = 0; commune < communes.present.length; commune++) {
+            if (!communes.present[commune])
+                continue;
+            categories.set(thresholds.categoriseByCollectiveHousingRange(communes.housing[commune]),
+                    communes.surface[commune], communes.residence[commune],
+                    thresholds.categoriseByHeatingRange(communes.heating[commune]),
+                    thresholds.categoriseByPopulationRange(communes.population[commune]));
+            int conso_category = thresholds.categoriseByConsoRange(communes.consumption[commune]);
+            tables[conso_category].increment(categories);
+            communes_per_category[conso_category]++;
+        }
+
+        List<String> lines = new ArrayList<String>();
+        for (int i : EnedisJobs.getLabelOrder(conso_labels)) {
+            if (communes_per_category[i] > 0)
+                lines.add(conso_labels[i] + "\t"
+                        + EnedisByConsumption.summariseCategories(tables[i], thresholds));
+        }
+        return lines;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+
+        List<String> paths = new ArrayList<String>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length)
+                threads = Integer.parseInt(args[++i]);
+            else
+                paths.add(args[i]);
+        }
+
+        if (paths.size() < 3) {
+            System.err.println("Usage : hadoop jar EnedisLocal.jar EnedisLocal [-D enedis.quantile.k=200] [--threads N] input sector-output conso-output");
+            System.exit(0);
+        }
+        args = paths.toArray(new String[0]);
+
+        if (!conf.get(EnedisBySector.GROUPINGS_PROPERTY, EnedisBySector.DEFAULT_GROUPINGS).equals(EnedisBySector.DEFAULT_GROUPINGS)
+                || !conf.get(EnedisByConsumption.GRAIN_PROPERTY, EnedisByConsumption.DEFAULT_GRAIN).equals(EnedisByConsumption.DEFAULT_GRAIN)) {
+            System.err.println("EnedisLocal only computes the default groupings (department for sectors, commune for consumption)");
+            System.exit(1);
+        }
+        EnedisByConsumption.checkBuckets(conf);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            long start = System.nanoTime();
+            Dataset dataset = Dataset.load(conf, new Path(args[0]), pool);
+            long loaded = System.nanoTime();
+
+            EnedisJobs.writeLines(conf, new Path(args[1]+"-final"), sectorAnalysis(conf, dataset, pool));
+            long sector = System.nanoTime();
+
+            Communes communes = communeAverages(dataset, pool);
+            List<String> minmax = minMaxAnalysis(communes, conf);
+            EnedisJobs.writeLines(conf, new Path(args[2]+"-minmax"), minmax);
+            EnedisByConsumption.Thresholds thresholds = new EnedisByConsumption.Thresholds();
+            for (String line : minmax)
+                thresholds.readMinMaxLine(line);
+            EnedisJobs.writeLines(conf, new Path(args[2]+"-final"), categoriesAnalysis(communes, thresholds));
+            long conso = System.nanoTime();
+
+            System.out.println(String.format(Locale.ROOT,
+                    "%d lines loaded in %.0f ms, sector analysis %.0f ms, consumption analysis %.0f ms",
+                    dataset.size(), (loaded - start) / 1e6, (sector - loaded) / 1e6, (conso - sector) / 1e6));
+            int malformed = dataset.malformed();
+            if (malformed > 0)
+                System.out.println(malformed + " malformed lines skipped");
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
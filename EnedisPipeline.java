@@ -0,0 +1,88 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+/**
+ * Run the EnedisBySector and EnedisByConsumption analyses of the same input at the same time.
+ *
+ * The jobs form two independent chains, FirstRun then SecondRun for each analysis (the consumption
+ * thresholds are merged by the driver between its two jobs, so its second job can only be configured
+ * once the first one has completed). Each chain runs in its own thread and stops at its first failed
+ * job without stopping the other one, so the wall time is close to the one of the longer analysis
+ * rather than the sum of both.
+ *
+ * Usage : hadoop jar EnedisPipeline.jar EnedisPipeline [--fused] [--columnar] [--map-codec C] [--output-codec C] [--threads N] [--filter-years Y1,Y2] [--filter-departments D1,D2] input sector-output conso-output
+ */
+public class EnedisPipeline {
+
+    public static void main(String[] args) throws Exception {
+
+        final Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+
+        // options given to both drivers, --fused only applies to the sector analysis
+        List<String> options = new ArrayList<String>();
+        List<String> paths = new ArrayList<String>();
+        boolean fused = false;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--fused"))
+                fused = true;
+            else if (arg.equals("--columnar"))
+                options.add(arg);
+            else if ((arg.equals("--map-codec") || arg.equals("--output-codec") || arg.equals("--threads")
+                    || arg.equals("--filter-years") || arg.equals("--filter-departments")) && i + 1 < args.length) {
+                options.add(arg);
+                options.add(args[++i]);
+            } else
+                paths.add(arg);
+        }
+
+        if (paths.size() != 3) {
+            System.err.println("Usage : hadoop jar EnedisPipeline.jar EnedisPipeline [--fused] [--columnar] [--map-codec C] [--output-codec C] [--threads N] [--filter-years Y1,Y2] [--filter-departments D1,D2] input sector-output conso-output");
+            System.exit(0);
+        }
+
+        final List<String> sector_args = new ArrayList<String>(options);
+        if (fused)
+            sector_args.add("--fused");
+        sector_args.add(paths.get(0));
+        sector_args.add(paths.get(1));
+
+        final List<String> conso_args = new ArrayList<String>(options);
+        conso_args.add(paths.get(0));
+        conso_args.add(paths.get(2));
+
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Map<String,Future<Long>> branches = new LinkedHashMap<String,Future<Long>>();
+        branches.put("EnedisBySector", executor.submit(() -> {
+            long branch_start = System.nanoTime();
+            EnedisBySector.run(new Configuration(conf), sector_args.toArray(new String[0]));
+            return (System.nanoTime() - branch_start) / 1000000;
+        }));
+        branches.put("EnedisByConsumption", executor.submit(() -> {
+            long branch_start = System.nanoTime();
+            EnedisByConsumption.run(new Configuration(conf), conso_args.toArray(new String[0]));
+            return (System.nanoTime() - branch_start) / 1000000;
+        }));
+        executor.shutdown();
+
+        boolean failed = false;
+        for (Map.Entry<String,Future<Long>> branch : branches.entrySet()) {
+            try {
+                System.out.println(branch.getKey() + " completed in " + branch.getValue().get() + " ms");
+            } catch (ExecutionException e) {
+                failed = true;
+                System.err.println(branch.getKey() + " failed: " + e.getCause());
+                e.getCause().printStackTrace();
+            }
+        }
+        System.out.println("Both analyses run in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        if (failed)
+            System.exit(1);
+    }
+}
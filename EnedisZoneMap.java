@@ -0,0 +1,463 @@
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.LineReader;
+
+/**
+ * Zone maps of the Enedis dataset: a small index stored next to each input file, so that the jobs
+ * filtered on some years or departments only read the parts of the files which can hold their lines.
+ *
+ * A file is cut into zones of whole lines, of about ZONE_SIZE bytes for the CSV and of one block for
+ * the columnar files. For each zone, the index stores its byte range, the smallest and greatest year
+ * of its lines and the set of their departments. A zone with a line whose year or department cannot be
+ * read is always read, so that the line is quarantined as it would be without the index.
+ *
+ * File layout (".<file name>.zonemap", hidden from the jobs like the checksum files):
+ *   "ENZMAP" version, length of the indexed file, zone count
+ *   zones: start end min_year max_year malformed department_count departments
+ *
+ * Build the index once per input, and again whenever a file changes, with:
+ *   hadoop jar EnedisBySector.jar EnedisZoneMap input [zone size in bytes]
+ */
+public class EnedisZoneMap {
+
+    public static final byte[] MAGIC = {'E', 'N', 'Z', 'M', 'A', 'P', 1};
+    public static final String EXTENSION = ".zonemap";
+    public static final long DEFAULT_ZONE_SIZE = 1 << 20;
+
+    /** Comma separated years, e.g. 2017,2018: the raw mappers only keep the lines of these years. */
+    public static final String YEARS_PROPERTY = "enedis.filter.years";
+
+    /** Comma separated department codes, e.g. 67,68,2A: the raw mappers only keep the lines of these departments. */
+    public static final String DEPARTMENTS_PROPERTY = "enedis.filter.departments";
+
+    /** Columns read by the filter: year and department. */
+    public static final String COLUMNS = "0,7";
+
+    public static Path getIndexPath(Path file) {
+        return new Path(file.getParent(), "." + file.getName() + EXTENSION);
+    }
+
+    /**
+     * Years and departments kept by a run, set by the --filter-years and --filter-departments options of the drivers.
+     */
+    public static class Filter {
+
+        private final Set<Integer> years = new HashSet<Integer>();
+        private final Set<Text> departments = new HashSet<Text>();
+        private final Text department = new Text();
+
+        /**
+         * @return the filter of the run, or null if it keeps every line
+         */
+        public static Filter get(Configuration conf) {
+            Filter filter = new Filter();
+            for (String year : conf.getTrimmedStringCollection(YEARS_PROPERTY))
+                filter.years.add(Integer.parseInt(year));
+            for (String department : conf.getTrimmedStringCollection(DEPARTMENTS_PROPERTY))
+                filter.departments.add(new Text(department));
+            return filter.years.isEmpty() && filter.departments.isEmpty() ? null : filter;
+        }
+
+        /**
+         * @return true if the line is of one of the years and departments of the filter
+         * @throws NumberFormatException if the year is not a number
+         * @throws ArrayIndexOutOfBoundsException if the line has no department
+         */
+        public boolean accept(FieldTokenizer cols) {
+            if (!years.isEmpty() && !years.contains(cols.getInt(0)))
+                return false;
+            if (departments.isEmpty())
+                return true;
+            cols.getText(7, department);
+            return departments.contains(department);
+        }
+
+        /**
+         * @return true if the zone can hold a line kept by the filter
+         */
+        public boolean matches(Zone zone) {
+            if (zone.malformed)
+                return true;
+            boolean year_matches = years.isEmpty();
+            for (int year : years)
+                year_matches |= zone.matchesYear(year);
+            if (!year_matches)
+                return false;
+            if (departments.isEmpty())
+                return true;
+            for (Text department : departments) {
+                if (zone.departments.contains(department))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Lines of the byte range [start, end) of a file: every line starting in the range belongs to the zone.
+     */
+    public static class Zone {
+
+        public long start;
+        public long end;
+        public int min_year = Integer.MAX_VALUE;
+        public int max_year = Integer.MIN_VALUE;
+        public boolean malformed;
+        public final SortedSet<Text> departments = new TreeSet<Text>();
+
+        public void add(FieldTokenizer cols) {
+            try {
+                int year = cols.getInt(0);
+                Text department = new Text();
+                cols.getText(7, department);
+                min_year = Math.min(min_year, year);
+                max_year = Math.max(max_year, year);
+                departments.add(department);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                malformed = true;
+            }
+        }
+
+        public boolean matchesYear(int year) {
+            return malformed || (min_year <= year && year <= max_year);
+        }
+    }
+
+    /**
+     * Zones of one file, and the length of the file when they were built.
+     */
+    public static class Index {
+
+        public final long length;
+        public final List<Zone> zones;
+
+        public Index(long length, List<Zone> zones) {
+            this.length = length;
+            this.zones = zones;
+        }
+
+        /**
+         * @return the index of *file*, or null if it was not built
+         */
+        public static Index read(FileSystem fs, Path file) throws IOException {
+            Path path = getIndexPath(file);
+            if (!fs.exists(path))
+                return null;
+            FSDataInputStream in = fs.open(path);
+            try {
+                byte[] magic = new byte[MAGIC.length];
+                in.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC))
+                    throw new IOException(path + " is not an Enedis zone map");
+                long length = in.readLong();
+                int count = in.readInt();
+                List<Zone> zones = new ArrayList<Zone>(count);
+                for (int z = 0; z < count; z++) {
+                    Zone zone = new Zone();
+                    zone.start = in.readLong();
+                    zone.end = in.readLong();
+                    zone.min_year = in.readInt();
+                    zone.max_year = in.readInt();
+                    zone.malformed = in.readBoolean();
+                    int departments = in.readInt();
+                    for (int d = 0; d < departments; d++)
+                        zone.departments.add(new Text(Text.readString(in)));
+                    zones.add(zone);
+                }
+                return new Index(length, zones);
+            } finally {
+                in.close();
+            }
+        }
+
+        public void write(FileSystem fs, Path file) throws IOException {
+            FSDataOutputStream out = fs.create(getIndexPath(file), true);
+            try {
+                out.write(MAGIC);
+                out.writeLong(length);
+                out.writeInt(zones.size());
+                for (Zone zone : zones) {
+                    out.writeLong(zone.start);
+                    out.writeLong(zone.end);
+                    out.writeInt(zone.min_year);
+                    out.writeInt(zone.max_year);
+                    out.writeBoolean(zone.malformed);
+                    out.writeInt(zone.departments.size());
+                    for (Text department : zone.departments)
+                        Text.writeString(out, department.toString());
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Read a CSV file and cut it into zones of whole lines of at least *zone_size* bytes (the last one excepted).
+     * The lines are split like LineRecordReader does, so the offsets are the ones of its splits.
+     */
+    public static Index buildText(Configuration conf, FileStatus file, long zone_size) throws IOException {
+        FileSystem fs = file.getPath().getFileSystem(conf);
+        FieldTokenizer cols = new FieldTokenizer(';');
+        List<Zone> zones = new ArrayList<Zone>();
+        LineReader reader = new LineReader(fs.open(file.getPath()), conf);
+        try {
+            Text line = new Text();
+            Zone zone = null;
+            long pos = 0;
+            int read;
+            while ((read = reader.readLine(line)) > 0) {
+                if (zone == null) {
+                    zone = new Zone();
+                    zone.start = pos;
+                }
+                zone.add(cols.reset(line));
+                pos += read;
+                if (pos - zone.start >= zone_size) {
+                    zone.end = pos;
+                    zones.add(zone);
+                    zone = null;
+                }
+            }
+            if (zone != null) {
+                zone.end = pos;
+                zones.add(zone);
+            }
+        } finally {
+            reader.close();
+        }
+        return new Index(file.getLen(), zones);
+    }
+
+    /**
+     * Read the year and department columns of a columnar file, with one zone per block.
+     */
+    public static Index buildColumnar(Configuration conf, FileStatus file) throws Exception {
+        FileSystem fs = file.getPath().getFileSystem(conf);
+        Configuration columns = new Configuration(conf);
+        columns.set(EnedisColumnarFile.COLUMNS_PROPERTY, COLUMNS);
+        TaskAttemptContext context = new TaskAttemptContextImpl(columns, new TaskAttemptID());
+        EnedisColumnarFile.Footer footer = new EnedisColumnarFile.Footer(fs, file.getPath(), file.getLen());
+        FieldTokenizer cols = new FieldTokenizer(';');
+
+        List<Zone> zones = new ArrayList<Zone>();
+        for (int b = 0; b < footer.blocks(); b++) {
+            Zone zone = new Zone();
+            zone.start = footer.offsets[b];
+            zone.end = footer.offsets[b + 1];
+            FileSplit block = new FileSplit(file.getPath(), zone.start, zone.end - zone.start, new String[0]);
+            EnedisColumnarFile.ColumnarRecordReader reader = new EnedisColumnarFile.ColumnarRecordReader();
+            try {
+                reader.initialize(block, context);
+                while (reader.nextKeyValue())
+                    zone.add(cols.reset(reader.getCurrentValue()));
+            } finally {
+                reader.close();
+            }
+            zones.add(zone);
+        }
+        return new Index(file.getLen(), zones);
+    }
+
+    /**
+     * Replace the splits of the indexed files by splits made of the runs of zones which can hold lines of the
+     * filter (and of the year of enedis.year), no longer than the largest split of the file. The files without
+     * an up-to-date index keep their splits.
+     *
+     * @param lines: true for LineRecordReader splits, which read the lines starting after their first byte up to
+     *               the one starting at their last byte, false for splits of whole columnar blocks
+     */
+    public static List<InputSplit> filterSplits(JobContext job, List<InputSplit> splits, boolean lines) throws IOException {
+        Configuration conf = job.getConfiguration();
+        Filter filter = Filter.get(conf);
+        int year = conf.getInt(EnedisJobs.YEAR_PROPERTY, -1);
+        if (filter == null && year < 0)
+            return splits;
+
+        Map<Path,List<FileSplit>> files = new LinkedHashMap<Path,List<FileSplit>>();
+        for (InputSplit split : splits) {
+            FileSplit file_split = (FileSplit) split;
+            if (!files.containsKey(file_split.getPath()))
+                files.put(file_split.getPath(), new ArrayList<FileSplit>());
+            files.get(file_split.getPath()).add(file_split);
+        }
+
+        List<InputSplit> filtered = new ArrayList<InputSplit>();
+        int zones = 0;
+        int read_zones = 0;
+        long bytes = 0;
+        long read_bytes = 0;
+        for (Map.Entry<Path,List<FileSplit>> file : files.entrySet()) {
+            Path path = file.getKey();
+            FileSystem fs = path.getFileSystem(conf);
+            FileStatus status = fs.getFileStatus(path);
+            Index index = Index.read(fs, path);
+            if (index == null || index.length != status.getLen()) {
+                if (index != null)
+                    System.err.println("The zone map of " + path + " is outdated, build it again with EnedisZoneMap");
+                filtered.addAll(file.getValue());
+                continue;
+            }
+
+            long split_size = 0;
+            for (FileSplit split : file.getValue())
+                split_size = Math.max(split_size, split.getLength());
+            filtered.addAll(pruneSplits(fs, status, index, filter, year, split_size, lines));
+            for (Zone zone : index.zones) {
+                if (matches(zone, filter, year)) {
+                    read_zones++;
+                    read_bytes += zone.end - zone.start;
+                }
+                zones++;
+                bytes += zone.end - zone.start;
+            }
+        }
+        if (zones > 0)
+            System.err.println(String.format(Locale.ROOT, "%s reads %d of the %d zones of the indexed files (%.1f of %.1f MB)",
+                    job.getJobName(), read_zones, zones, read_bytes / 1e6, bytes / 1e6));
+        return filtered;
+    }
+
+    private static boolean matches(Zone zone, Filter filter, int year) {
+        return (filter == null || filter.matches(zone)) && (year < 0 || zone.matchesYear(year));
+    }
+
+    /**
+     * @return the splits of the runs of matching zones of one indexed file, cut every *split_size* bytes
+     */
+    public static List<FileSplit> pruneSplits(FileSystem fs, FileStatus status, Index index, Filter filter, int year,
+                                              long split_size, boolean lines) throws IOException {
+        List<FileSplit> splits = new ArrayList<FileSplit>();
+        long start = -1;
+        long end = -1;
+        for (Zone zone : index.zones) {
+            boolean match = matches(zone, filter, year);
+            if (start >= 0 && (!match || zone.end - start > split_size)) {
+                splits.add(newSplit(fs, status, start, end, lines));
+                start = -1;
+            }
+            if (match) {
+                if (start < 0)
+                    start = zone.start;
+                end = zone.end;
+            }
+        }
+        if (start >= 0)
+            splits.add(newSplit(fs, status, start, end, lines));
+        return splits;
+    }
+
+    private static FileSplit newSplit(FileSystem fs, FileStatus file, long start, long end, boolean lines)
+            throws IOException {
+        BlockLocation[] locations = fs.getFileBlockLocations(file, start, end - start);
+        String[] hosts = locations.length > 0 ? locations[0].getHosts() : new String[0];
+        // a LineRecordReader skips the line holding its first byte and reads the one starting on its last
+        // byte: cover [start - 1, end - 1), i.e. from the end of line before the zone to the last one of the run
+        if (lines && start > 0)
+            return new FileSplit(file.getPath(), start - 1, end - start, hosts);
+        if (lines)
+            return new FileSplit(file.getPath(), 0, end - 1, hosts);
+        return new FileSplit(file.getPath(), start, end - start, hosts);
+    }
+
+    /**
+     * Check that the lines of a CSV file are read once by the pruned splits of its index, cut on every zone,
+     * as they are by a single unfiltered split.
+     *
+     * @return the number of lines of the file
+     * @throws IOException if the line counts differ
+     */
+    public static long checkText(Configuration conf, FileStatus file, Index index) throws IOException {
+        FileSystem fs = file.getPath().getFileSystem(conf);
+        long unfiltered = countLines(conf, new FileSplit(file.getPath(), 0, file.getLen(), new String[0]));
+        long pruned = 0;
+        for (FileSplit split : pruneSplits(fs, file, index, null, -1, 0, true))
+            pruned += countLines(conf, split);
+        if (pruned != unfiltered)
+            throw new IOException("The pruned splits of " + file.getPath() + " read " + pruned + " lines instead of " + unfiltered);
+        return unfiltered;
+    }
+
+    private static long countLines(Configuration conf, FileSplit split) throws IOException {
+        LineRecordReader reader = new LineRecordReader();
+        long lines = 0;
+        try {
+            reader.initialize(split, new TaskAttemptContextImpl(conf, new TaskAttemptID()));
+            while (reader.nextKeyValue())
+                lines++;
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    /**
+     * TextInputFormat which skips the zones of the indexed files without any line of the filter.
+     */
+    public static class ZoneTextInputFormat extends TextInputFormat {
+
+        @Override
+        public List<InputSplit> getSplits(JobContext job) throws IOException {
+            return filterSplits(job, super.getSplits(job), true);
+        }
+    }
+
+    /**
+     * ColumnarInputFormat which skips the blocks of the indexed files without any line of the filter.
+     */
+    public static class ZoneColumnarInputFormat extends EnedisColumnarFile.ColumnarInputFormat {
+
+        @Override
+        public List<InputSplit> getSplits(JobContext job) throws IOException {
+            return filterSplits(job, super.getSplits(job), false);
+        }
+    }
+
+    /**
+     * Build the index of every CSV or columnar file of a directory (or of a single file).
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage : hadoop jar EnedisBySector.jar EnedisZoneMap input [zone size in bytes]");
+            System.exit(0);
+        }
+
+        Configuration conf = new Configuration();
+        Path input = new Path(args[0]);
+        long zone_size = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_ZONE_SIZE;
+        FileSystem fs = input.getFileSystem(conf);
+        CompressionCodecFactory codecs = new CompressionCodecFactory(conf);
+
+        for (FileStatus file : fs.listStatus(input)) {
+            Path path = file.getPath();
+            String name = path.getName();
+            if (file.isDirectory() || name.startsWith("_") || name.startsWith("."))
+                continue;
+            if (codecs.getCodec(path) != null) {
+                System.err.println(path + " is compressed and cannot be split, skipped");
+                continue;
+            }
+
+            boolean columnar = name.endsWith(EnedisColumnarFile.EXTENSION);
+            Index index = columnar ? buildColumnar(conf, file) : buildText(conf, file, zone_size);
+            String lines = columnar ? "" : ", " + checkText(conf, file, index) + " lines";
+            index.write(fs, path);
+            System.out.println(path + " -> " + getIndexPath(path) + " (" + index.zones.size() + " zones" + lines + ")");
+        }
+    }
+}
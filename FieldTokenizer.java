@@ -0,0 +1,205 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Reusable tokenizer for one line of the Enedis dataset.
+ *
+ * It records the offsets of the fields directly on the UTF-8 bytes of the line, without
+ * decoding it to a String or allocating an array of Strings like value.toString().split(";").
+ * Numeric fields are parsed from the bytes as well; the tokenizer and its buffers are meant
+ * to be created once per task and reset for every record.
+ */
+public class FieldTokenizer {
+
+    private static final float[] FLOAT_POWERS_OF_TEN = {
+            1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
+    private static final double[] DOUBLE_POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private final byte delimiter;
+
+    private byte[] bytes;
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private int count;
+
+    public FieldTokenizer(char delimiter) {
+        this.delimiter = (byte) delimiter;
+    }
+
+    /**
+     * Split the content of a Text. The tokenizer keeps a reference to its bytes,
+     * so the Text must not be modified while the fields are read.
+     */
+    public FieldTokenizer reset(Text line) {
+        return reset(line.getBytes(), 0, line.getLength());
+    }
+
+    public FieldTokenizer reset(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.count = 0;
+        int end = offset + length;
+        int start = offset;
+        for (int i = offset; i < end; i++) {
+            if (bytes[i] == delimiter) {
+                add(start, i);
+                start = i + 1;
+            }
+        }
+        add(start, end);
+        return this;
+    }
+
+    private void add(int start, int end) {
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+        }
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+    }
+
+    /**
+     * @return number of fields of the line, like split(";", -1).length
+     */
+    public int size() {
+        return count;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getStart(int field) {
+        checkField(field);
+        return starts[field];
+    }
+
+    public int getLength(int field) {
+        checkField(field);
+        return ends[field] - starts[field];
+    }
+
+    public boolean isEmpty(int field) {
+        return getLength(field) == 0;
+    }
+
+    /**
+     * Copy a field into a reusable Text.
+     */
+    public void getText(int field, Text out) {
+        checkField(field);
+        out.set(bytes, starts[field], ends[field] - starts[field]);
+    }
+
+    public String getString(int field) {
+        checkField(field);
+        return new String(bytes, starts[field], ends[field] - starts[field], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parse a field as a float, with the same result as Float.parseFloat on the field text.
+     *
+     * Plain decimal numbers such as "12.345" are parsed from the bytes. Anything else
+     * (exponents, spaces, NaN, very long mantissas, rare double rounding cases) falls back
+     * to Float.parseFloat.
+     *
+     * @throws NumberFormatException if the field is not a number
+     */
+    public float getFloat(int field) {
+        checkField(field);
+        int i = starts[field];
+        int end = ends[field];
+
+        boolean negative = false;
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int significant_digits = 0;
+        int scale = 0;
+        boolean dot = false;
+        boolean digits = false;
+        for (; i < end; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                if (significant_digits >= 18)
+                    return parseFloatSlow(field);
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa != 0)
+                    significant_digits++;
+                if (dot)
+                    scale++;
+                digits = true;
+            } else if (b == '.' && !dot) {
+                dot = true;
+            } else {
+                return parseFloatSlow(field);
+            }
+        }
+        if (!digits)
+            return parseFloatSlow(field);
+
+        float value;
+        if (mantissa < (1 << 24) && scale < FLOAT_POWERS_OF_TEN.length) {
+            // both operands are exact floats, so the division is correctly rounded
+            value = (float) mantissa / FLOAT_POWERS_OF_TEN[scale];
+        } else if (mantissa < (1L << 53) && scale < DOUBLE_POWERS_OF_TEN.length) {
+            double exact = (double) mantissa / DOUBLE_POWERS_OF_TEN[scale];
+            value = (float) exact;
+            if ((double) value != exact) {
+                // rounding twice is only wrong when the double lands exactly between two floats
+                double neighbour = exact > value ? Math.nextUp(value) : Math.nextDown(value);
+                if (((double) value + neighbour) / 2 == exact)
+                    return parseFloatSlow(field);
+            }
+        } else {
+            return parseFloatSlow(field);
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse a field as an int, with the same result as Integer.parseInt on the field text.
+     *
+     * @throws NumberFormatException if the field is not an int
+     */
+    public int getInt(int field) {
+        checkField(field);
+        int i = starts[field];
+        int end = ends[field];
+
+        boolean negative = false;
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+        if (i == end || end - i > 9)
+            return Integer.parseInt(getString(field));
+
+        int value = 0;
+        for (; i < end; i++) {
+            byte b = bytes[i];
+            if (b < '0' || b > '9')
+                return Integer.parseInt(getString(field));
+            value = value * 10 + (b - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private float parseFloatSlow(int field) {
+        return Float.parseFloat(getString(field));
+    }
+
+    private void checkField(int field) {
+        if (field < 0 || field >= count)
+            throw new ArrayIndexOutOfBoundsException(field);
+    }
+}
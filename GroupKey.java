@@ -0,0 +1,321 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Composite grouping key of the analyses: some of the year, region, department, EPCI and commune of a line.
+ *
+ * A grouping is a set of dimensions, stored as a bit mask. The finest dimension of a grouping is its
+ * entity (e.g. the department), the other ones partition the results (e.g. one ranking per year).
+ *
+ * The key is kept in its serialized form: one byte for the grouping, then the codes of its dimensions
+ * from the coarsest to the finest, each followed by a 0 byte (codes never contain one). Comparing two keys
+ * byte by byte orders them by grouping, then by codes, each code in the same order as Text, so the
+ * registered Comparator sorts the keys without deserializing them.
+ */
+public class GroupKey implements WritableComparable<GroupKey> {
+
+    public enum Dimension {
+        YEAR(0, "year", "Année"),
+        REGION(9, "region", "Région"),
+        DEPARTMENT(7, "department", "Département"),
+        EPCI(4, "epci", "EPCI"),
+        COMMUNE(2, "commune", "Commune");
+
+        private final int column;
+        private final String name;
+        private final String label;
+
+        Dimension(int column, String name, String label) {
+            this.column = column;
+            this.name = name;
+            this.label = label;
+        }
+
+        /** Column of the code in the dataset. */
+        public int getColumn() {
+            return column;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** Label printed before a code in the outputs, e.g. "Département 67". */
+        public String getLabel() {
+            return label;
+        }
+
+        public int bit() {
+            return 1 << ordinal();
+        }
+    }
+
+    private static final Dimension[] DIMENSIONS = Dimension.values();
+
+    /** Set in the grouping byte of a partition key, made of the dimensions of a grouping but its entity. */
+    private static final int PARTITION_FLAG = 0x80;
+
+    private static final byte END = 0;
+
+    private byte[] bytes = new byte[32];
+    private int length;
+
+    /**
+     * Parse a grouping, e.g. "year,department". The order of the dimensions does not matter.
+     *
+     * @throws IllegalArgumentException for an unknown or missing dimension
+     */
+    public static int parseGrouping(String spec) {
+        int grouping = 0;
+        for (String name : spec.split(",")) {
+            name = name.trim();
+            if (name.isEmpty())
+                continue;
+            Dimension dimension = null;
+            for (Dimension d : DIMENSIONS) {
+                if (d.getName().equalsIgnoreCase(name))
+                    dimension = d;
+            }
+            if (dimension == null)
+                throw new IllegalArgumentException("Unknown grouping dimension " + name + " in " + spec);
+            grouping |= dimension.bit();
+        }
+        if (grouping == 0)
+            throw new IllegalArgumentException("Empty grouping " + spec);
+        return grouping;
+    }
+
+    /**
+     * Parse groupings separated by semicolons, e.g. "department;year,department;region".
+     */
+    public static int[] parseGroupings(String spec) {
+        String[] parts = spec.split(";");
+        int[] groupings = new int[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            groupings[i] = parseGrouping(parts[i]);
+        return groupings;
+    }
+
+    /**
+     * @return the dimensions of the grouping, e.g. "yearDepartment", usable as a MultipleOutputs name
+     */
+    public static String getName(int grouping) {
+        StringBuilder name = new StringBuilder();
+        for (Dimension dimension : DIMENSIONS) {
+            if ((grouping & dimension.bit()) == 0)
+                continue;
+            if (name.length() == 0) {
+                name.append(dimension.getName());
+            } else {
+                name.append(Character.toUpperCase(dimension.getName().charAt(0)));
+                name.append(dimension.getName().substring(1));
+            }
+        }
+        return name.toString();
+    }
+
+    /**
+     * @return the finest dimension of the grouping
+     */
+    public static Dimension getEntity(int grouping) {
+        for (int d = DIMENSIONS.length - 1; d >= 0; d--) {
+            if ((grouping & DIMENSIONS[d].bit()) != 0)
+                return DIMENSIONS[d];
+        }
+        throw new IllegalArgumentException("Empty grouping");
+    }
+
+    /**
+     * @return the columns read to build the keys of the groupings, in the format of EnedisColumnarFile
+     */
+    public static String getColumns(int[] groupings) {
+        StringBuilder columns = new StringBuilder();
+        for (Dimension dimension : DIMENSIONS) {
+            for (int grouping : groupings) {
+                if ((grouping & dimension.bit()) != 0) {
+                    columns.append(',').append(dimension.getColumn());
+                    break;
+                }
+            }
+        }
+        return columns.toString();
+    }
+
+    /**
+     * Build the key of a line of the dataset for a grouping.
+     */
+    public void set(int grouping, FieldTokenizer cols) {
+        length = 0;
+        append((byte) grouping);
+        for (Dimension dimension : DIMENSIONS) {
+            if ((grouping & dimension.bit()) != 0) {
+                int column = dimension.getColumn();
+                append(cols.getBytes(), cols.getStart(column), cols.getLength(column));
+                append(END);
+            }
+        }
+    }
+
+    public void set(GroupKey other) {
+        length = 0;
+        append(other.bytes, 0, other.length);
+    }
+
+    /**
+     * Set *partition* to this key without its entity.
+     */
+    public void getPartition(GroupKey partition) {
+        int last = length - 1;
+        while (last > 1 && bytes[last - 1] != END)
+            last--;
+        partition.length = 0;
+        partition.append(bytes, 0, last);
+        partition.bytes[0] |= PARTITION_FLAG;
+    }
+
+    /**
+     * @return the grouping of the key, or of the key it is the partition of
+     */
+    public int getGrouping() {
+        return bytes[0] & ~PARTITION_FLAG & 0xFF;
+    }
+
+    public boolean isPartition() {
+        return (bytes[0] & PARTITION_FLAG) != 0;
+    }
+
+    /**
+     * Copy the code of the entity (the last code) of a key into *out*.
+     */
+    public void getEntity(Text out) {
+        int start = length - 1;
+        while (start > 1 && bytes[start - 1] != END)
+            start--;
+        out.set(bytes, start, length - 1 - start);
+    }
+
+    /**
+     * @return the codes of the key, in the order of the dimensions
+     */
+    public List<String> getCodes() {
+        List<String> codes = new ArrayList<String>();
+        int start = 1;
+        for (int i = 1; i < length; i++) {
+            if (bytes[i] == END) {
+                codes.add(new String(bytes, start, i - start, StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * @return the dimensions with their codes, e.g. "Année 2016, Région 44", empty for a key without codes
+     */
+    public String getLabel() {
+        StringBuilder label = new StringBuilder();
+        Iterator<String> codes = getCodes().iterator();
+        int grouping = getGrouping();
+        for (Dimension dimension : DIMENSIONS) {
+            if ((grouping & dimension.bit()) == 0 || !codes.hasNext())
+                continue;
+            if (label.length() > 0)
+                label.append(", ");
+            label.append(dimension.getLabel()).append(' ').append(codes.next());
+        }
+        return label.toString();
+    }
+
+    private void append(byte b) {
+        ensureCapacity(length + 1);
+        bytes[length++] = b;
+    }
+
+    private void append(byte[] source, int start, int count) {
+        ensureCapacity(length + count);
+        System.arraycopy(source, start, bytes, length, count);
+        length += count;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, length);
+        out.write(bytes, 0, length);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        length = 0;
+        int size = WritableUtils.readVInt(in);
+        ensureCapacity(size);
+        in.readFully(bytes, 0, size);
+        length = size;
+    }
+
+    @Override
+    public int compareTo(GroupKey other) {
+        return WritableComparator.compareBytes(bytes, 0, length, other.bytes, 0, other.length);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof GroupKey && compareTo((GroupKey) other) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return WritableComparator.hashBytes(bytes, length);
+    }
+
+    /**
+     * e.g. year=2016/department=67
+     */
+    @Override
+    public String toString() {
+        StringBuilder output = new StringBuilder();
+        Iterator<String> codes = getCodes().iterator();
+        int grouping = getGrouping();
+        for (Dimension dimension : DIMENSIONS) {
+            if ((grouping & dimension.bit()) == 0 || !codes.hasNext())
+                continue;
+            if (output.length() > 0)
+                output.append('/');
+            output.append(dimension.getName()).append('=').append(codes.next());
+        }
+        return output.toString();
+    }
+
+    /**
+     * Compare the serialized keys, after their length.
+     */
+    public static class Comparator extends WritableComparator {
+
+        public Comparator() {
+            super(GroupKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int size1 = WritableUtils.decodeVIntSize(b1[s1]);
+            int size2 = WritableUtils.decodeVIntSize(b2[s2]);
+            return compareBytes(b1, s1 + size1, l1 - size1, b2, s2 + size2, l2 - size2);
+        }
+    }
+
+    static {
+        WritableComparator.define(GroupKey.class, new Comparator());
+    }
+}
@@ -0,0 +1,266 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * Mergeable KLL quantile sketch over float values.
+ *
+ * The sketch keeps a stack of compactors: level h holds items of weight 2^h. When the
+ * sketch grows past its capacity, the lowest full level is sorted and every other item
+ * is promoted to the next level. Memory therefore stays in O(k log(n/k)) whatever the
+ * number of values, and the rank error of a quantile is roughly 1.7/k (about 1% for k=200).
+ * As long as fewer than k values were added, quantiles are exact.
+ *
+ * Sketches can be built in the mappers, merged in a combiner and merged again in the reducer.
+ */
+public class QuantileSketch implements Writable {
+
+    /** Configuration key for the accuracy parameter k. */
+    public static final String K_PROPERTY = "enedis.quantile.k";
+    public static final int DEFAULT_K = 200;
+
+    private static final double CAPACITY_DECAY = 2.0 / 3.0;
+    private static final int MIN_CAPACITY = 8;
+    private static final long SEED = 0x454E4544L;
+
+    private int k;
+    private long n;
+    private float min;
+    private float max;
+
+    private float[][] levels;
+    private int[] sizes;
+    private int retained;
+    private int max_retained;
+
+    private final Random random = new Random(SEED);
+
+    public QuantileSketch() {
+        this(DEFAULT_K);
+    }
+
+    public QuantileSketch(int k) {
+        reset(k);
+    }
+
+    public void reset(int k) {
+        if (k < MIN_CAPACITY)
+            throw new IllegalArgumentException("k must be at least " + MIN_CAPACITY + ", got " + k);
+        this.k = k;
+        this.n = 0;
+        this.min = Float.POSITIVE_INFINITY;
+        this.max = Float.NEGATIVE_INFINITY;
+        this.levels = new float[1][k];
+        this.sizes = new int[1];
+        this.retained = 0;
+        this.max_retained = capacity(0);
+        this.random.setSeed(SEED);
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public long getCount() {
+        return n;
+    }
+
+    public float getMin() {
+        return min;
+    }
+
+    public float getMax() {
+        return max;
+    }
+
+    /**
+     * Add one value to the sketch. NaN values are ignored.
+     */
+    public void update(float value) {
+        if (Float.isNaN(value))
+            return;
+        if (value < min)
+            min = value;
+        if (value > max)
+            max = value;
+        n++;
+        append(0, value);
+        retained++;
+        if (retained >= max_retained)
+            compress();
+    }
+
+    /**
+     * Merge the content of another sketch into this one. The other sketch is left untouched.
+     */
+    public void merge(QuantileSketch other) {
+        if (other.n == 0)
+            return;
+        while (levels.length < other.levels.length)
+            grow();
+        for (int h = 0; h < other.levels.length; h++) {
+            for (int i = 0; i < other.sizes[h]; i++)
+                append(h, other.levels[h][i]);
+        }
+        n += other.n;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        retained = 0;
+        for (int h = 0; h < sizes.length; h++)
+            retained += sizes[h];
+        while (retained >= max_retained)
+            compress();
+    }
+
+    /**
+     * Return the value whose rank is floor(fraction * n) in the sorted input,
+     * i.e. the same element as sorted_values.get((int) (size * fraction)) on the full list.
+     *
+     * @param fraction: quantile to look up, between 0 and 1
+     * @return the (approximate) quantile, or NaN if the sketch is empty
+     */
+    public float getQuantile(double fraction) {
+        if (n == 0)
+            return Float.NaN;
+        if (fraction <= 0)
+            return min;
+        if (fraction >= 1)
+            return max;
+        return getRank((long) (fraction * n));
+    }
+
+    /**
+     * Return the lower bound of a bucket when the input is cut into *buckets* equal parts, with the
+     * rank bucket * floor(n / buckets) of the former sort-based MinMaxReducer, i.e. the same element as
+     * sorted_values.get((size / 4) * 3) for the third quartile. This rank can be lower than
+     * floor(n * bucket / buckets) by up to bucket - 1, which matters for small inputs where the sketch is exact.
+     *
+     * @param bucket: index of the bucket, between 1 and buckets - 1
+     * @param buckets: number of buckets
+     * @return the (approximate) bound, or NaN if the sketch is empty
+     */
+    public float getBucketBound(int bucket, int buckets) {
+        if (n == 0)
+            return Float.NaN;
+        if (bucket <= 0)
+            return min;
+        if (bucket >= buckets)
+            return max;
+        return getRank(bucket * (n / buckets));
+    }
+
+    private float getRank(long rank) {
+        int nb_levels = levels.length;
+        float[][] sorted = new float[nb_levels][];
+        int[] heads = new int[nb_levels];
+        for (int h = 0; h < nb_levels; h++) {
+            sorted[h] = Arrays.copyOf(levels[h], sizes[h]);
+            Arrays.sort(sorted[h]);
+        }
+
+        long cumulative = 0;
+        while (true) {
+            int best = -1;
+            for (int h = 0; h < nb_levels; h++) {
+                if (heads[h] < sorted[h].length
+                        && (best < 0 || sorted[h][heads[h]] < sorted[best][heads[best]]))
+                    best = h;
+            }
+            if (best < 0)
+                return max;
+            float value = sorted[best][heads[best]++];
+            cumulative += 1L << best;
+            if (cumulative > rank)
+                return Math.max(min, Math.min(max, value));
+        }
+    }
+
+    private int capacity(int level) {
+        int depth = levels.length - 1 - level;
+        return Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(CAPACITY_DECAY, depth)));
+    }
+
+    private void append(int level, float value) {
+        if (sizes[level] == levels[level].length)
+            levels[level] = Arrays.copyOf(levels[level], Math.max(MIN_CAPACITY, sizes[level] * 2));
+        levels[level][sizes[level]++] = value;
+    }
+
+    private void grow() {
+        int nb_levels = levels.length + 1;
+        levels = Arrays.copyOf(levels, nb_levels);
+        levels[nb_levels - 1] = new float[MIN_CAPACITY];
+        sizes = Arrays.copyOf(sizes, nb_levels);
+        max_retained = 0;
+        for (int h = 0; h < nb_levels; h++)
+            max_retained += capacity(h);
+    }
+
+    /**
+     * Compact the lowest level that reached its capacity: sort it and promote
+     * every other item (random offset) to the level above.
+     */
+    private void compress() {
+        for (int h = 0; h < levels.length; h++) {
+            if (sizes[h] >= capacity(h)) {
+                if (h + 1 >= levels.length)
+                    grow();
+                float[] items = levels[h];
+                int size = sizes[h];
+                Arrays.sort(items, 0, size);
+
+                int odd = size % 2;
+                int offset = random.nextBoolean() ? 1 : 0;
+                for (int i = odd + offset; i < size; i += 2)
+                    append(h + 1, items[i]);
+
+                // with an odd size, the smallest item stays alone at this level
+                sizes[h] = odd;
+                retained -= size - odd - (size - odd) / 2;
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(k);
+        out.writeLong(n);
+        out.writeFloat(min);
+        out.writeFloat(max);
+        out.writeInt(levels.length);
+        for (int h = 0; h < levels.length; h++) {
+            out.writeInt(sizes[h]);
+            for (int i = 0; i < sizes[h]; i++)
+                out.writeFloat(levels[h][i]);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        reset(in.readInt());
+        n = in.readLong();
+        min = in.readFloat();
+        max = in.readFloat();
+        int nb_levels = in.readInt();
+        while (levels.length < nb_levels)
+            grow();
+        for (int h = 0; h < nb_levels; h++) {
+            int size = in.readInt();
+            for (int i = 0; i < size; i++)
+                append(h, in.readFloat());
+        }
+        retained = 0;
+        for (int h = 0; h < nb_levels; h++)
+            retained += sizes[h];
+    }
+
+    @Override
+    public String toString() {
+        return "QuantileSketch(k=" + k + ", n=" + n + ", retained=" + retained + ")";
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+/**
+ * Machine-readable report of a run of one of the drivers: for each job, its duration, its counters
+ * (the Hadoop ones and the EnedisJobs.Records and sampled timer ones) and the size of the output
+ * of each reducer, to spot skewed partitions. It is written as JSON next to the outputs,
+ * e.g. sector-output-report.json, so that the throughput of successive runs can be compared.
+ */
+public class RunReport {
+
+    private final String driver;
+    private final long start = System.currentTimeMillis();
+    private final List<String> jobs = new ArrayList<String>();
+
+    public RunReport(String driver) {
+        this.driver = driver;
+    }
+
+    /**
+     * Run a job, like job.waitForCompletion(true), and add it to the report.
+     *
+     * @return true if the job succeeded
+     */
+    public boolean run(Job job) throws Exception {
+        long job_start = System.nanoTime();
+        boolean success = false;
+        try {
+            success = job.waitForCompletion(true);
+        } finally {
+            add(job, success, (System.nanoTime() - job_start) / 1000000);
+        }
+        return success;
+    }
+
+    /**
+     * Run a job and fail if it does not succeed.
+     */
+    public void complete(Job job) throws Exception {
+        if (!run(job))
+            throw new IOException("Job " + job.getJobName() + " failed");
+    }
+
+    private void add(Job job, boolean success, long duration_ms) throws IOException, InterruptedException {
+        StringBuilder json = new StringBuilder();
+        json.append("    {\n");
+        json.append("      \"name\": ").append(quote(job.getJobName())).append(",\n");
+        json.append("      \"id\": ").append(quote(String.valueOf(job.getJobID()))).append(",\n");
+        json.append("      \"success\": ").append(success).append(",\n");
+        json.append("      \"duration_ms\": ").append(duration_ms).append(",\n");
+        json.append("      \"reducers\": ").append(job.getNumReduceTasks()).append(",\n");
+
+        Path output = FileOutputFormat.getOutputPath(job);
+        json.append("      \"output\": ").append(quote(String.valueOf(output))).append(",\n");
+        json.append("      \"reducer_output_bytes\": ").append(getReducerOutputBytes(job.getConfiguration(), output)).append(",\n");
+
+        // per-task counters are only kept by the cluster, the local runner returns no report
+        List<Long> reduce_inputs = new ArrayList<Long>();
+        if (job.getJobID() != null) {
+            for (TaskReport task : job.getTaskReports(TaskType.REDUCE))
+                reduce_inputs.add(task.getTaskCounters().findCounter(TaskCounter.REDUCE_INPUT_RECORDS).getValue());
+        }
+        json.append("      \"reducer_input_records\": ").append(reduce_inputs).append(",\n");
+
+        json.append("      \"counters\": {");
+        Counters counters = job.getJobID() == null ? null : job.getCounters();
+        if (counters != null) {
+            String group_separator = "\n";
+            for (CounterGroup group : counters) {
+                json.append(group_separator);
+                json.append("        ").append(quote(group.getName())).append(": {");
+                String counter_separator = "\n";
+                for (Counter counter : group) {
+                    json.append(counter_separator);
+                    json.append("          ").append(quote(counter.getName())).append(": ").append(counter.getValue());
+                    counter_separator = ",\n";
+                }
+                json.append("\n        }");
+                group_separator = ",\n";
+            }
+            json.append("\n      ");
+        }
+        json.append("}\n");
+        json.append("    }");
+        jobs.add(json.toString());
+    }
+
+    /**
+     * Size of the part file of each reducer, in reducer order, or an empty list if there is no output.
+     */
+    private static List<Long> getReducerOutputBytes(Configuration conf, Path output) throws IOException {
+        List<Long> sizes = new ArrayList<Long>();
+        if (output == null)
+            return sizes;
+        FileSystem fs = output.getFileSystem(conf);
+        FileStatus[] parts = fs.globStatus(new Path(output, "part-r-*"));
+        if (parts == null)
+            return sizes;
+        Arrays.sort(parts);
+        for (FileStatus part : parts)
+            sizes.add(part.getLen());
+        return sizes;
+    }
+
+    /**
+     * Write the report, replacing the one of a previous run.
+     */
+    public void write(Configuration conf, Path path) throws IOException {
+        SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX", Locale.ROOT);
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"driver\": ").append(quote(driver)).append(",\n");
+        json.append("  \"start\": ").append(quote(iso.format(new Date(start)))).append(",\n");
+        json.append("  \"duration_ms\": ").append(System.currentTimeMillis() - start).append(",\n");
+        json.append("  \"jobs\": [");
+        for (int j = 0; j < jobs.size(); j++) {
+            json.append(j == 0 ? "\n" : ",\n");
+            json.append(jobs.get(j));
+        }
+        json.append(jobs.isEmpty() ? "]\n" : "\n  ]\n");
+        json.append("}\n");
+
+        FileSystem fs = path.getFileSystem(conf);
+        Writer writer = new OutputStreamWriter(fs.create(path, true), StandardCharsets.UTF_8);
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+        System.out.println("Run report written to " + path);
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                quoted.append('\\').append(c);
+            else if (c < 0x20)
+                quoted.append(String.format("\\u%04x", (int) c));
+            else
+                quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+}